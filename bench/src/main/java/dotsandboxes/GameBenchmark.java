@@ -0,0 +1,173 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Ray Santana
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dotsandboxes;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class GameBenchmark {
+    /* Game engine costs at several grid sizes. Moves are played in a fixed
+       random order; when a game fills up a new one is started, which is
+       amortised over every line of the grid. The benchmark thread stands
+       in for the game's worker and calls what its messages would run. */
+    @Param({"7", "21", "101", "201"})
+    int gridLength;
+
+    private int[] order;
+    private int next;
+    private Game game;
+    private Blackhole sink;
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) {
+        /* A Game prints the score from the Rules core whenever one of the
+           playouts finishes it; keep that out of the output. */
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        sink = blackhole;
+        order = shuffledLines(gridLength, new Random(42));
+        newGame();
+    }
+
+    @Benchmark
+    public boolean legalMove() {
+        if (next == order.length) {
+            newGame();
+        }
+        int position = order[next++];
+        return game.legalMove(position, game.currentPlayer);
+    }
+
+    @Benchmark
+    public int boardPlayout() {
+        /* A full game on the bare board, without players or messages. */
+        Board board = new Board(gridLength);
+        int boxes = 0;
+        for (int position : order) {
+            boxes += Integer.bitCount(board.play(position));
+        }
+        return boxes;
+    }
+
+    @Benchmark
+    public int rulesPlayout() {
+        /* A full game on the rules core, with turns and scores but no
+           players or messages; the same core the simulator plays. */
+        Rules rules = new Rules(gridLength);
+        for (int position : order) {
+            rules.play(rules.turn(), position, Rules.IGNORE);
+        }
+        return rules.points('B');
+    }
+
+    @Benchmark
+    public boolean gamePlayout() {
+        /* A full game as the server plays it, checking for the end of the
+           game after every move. */
+        Game playout = new Game(gridLength);
+        Game.Player first = playout.new Player(new NullConnection(sink), 'B');
+        Game.Player second = playout.new Player(new NullConnection(sink), 'R');
+        playout.begin(first, second);
+        for (int position : order) {
+            playout.legalMove(position, playout.currentPlayer);
+            if (playout.isFinished()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void newGame() {
+        game = new Game(gridLength);
+        Game.Player blue = game.new Player(new NullConnection(sink), 'B');
+        Game.Player red = game.new Player(new NullConnection(sink), 'R');
+        game.begin(blue, red);
+        next = 0;
+    }
+
+    static int[] shuffledLines(int gridLength, Random random) {
+        /* Every line position of the grid in random order. */
+        int[] lines = new int[gridLength * gridLength / 2];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = 2 * i + 1;
+        }
+        for (int i = lines.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = lines[i];
+            lines[i] = lines[j];
+            lines[j] = swap;
+        }
+        return lines;
+    }
+
+    static final class NullConnection extends StreamConnection {
+        /* Encodes messages like a remote connection but swallows the
+           bytes, so the game logic is measured without any I/O. */
+        private final Blackhole sink;
+
+        NullConnection(Blackhole sink) {
+            this(sink, false);
+        }
+
+        NullConnection(Blackhole sink, boolean binary) {
+            this.sink = sink;
+            this.binary = binary;
+        }
+
+        protected void write(byte[] bytes, int offset, int length) {
+            sink.consume(bytes);
+            sink.consume(length);
+        }
+
+        public void close() {}
+
+        public boolean isOpen() {
+            return true;
+        }
+    }
+}
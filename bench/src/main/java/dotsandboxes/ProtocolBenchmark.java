@@ -0,0 +1,112 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Ray Santana
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dotsandboxes;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ProtocolBenchmark {
+    /* Formatting and parsing of the text protocol lines, written the same
+       way as in Server and Client, and the batch encoder the server uses
+       for both framings. Positions are kept in a field so the JIT cannot
+       fold the strings into constants. */
+    @Param({"23", "40399"})
+    int position;
+
+    private String move;
+    private String validation;
+    private GameBenchmark.NullConnection text;
+    private GameBenchmark.NullConnection binary;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        move = "M " + position;
+        validation = "V Y " + position;
+        text = new GameBenchmark.NullConnection(blackhole, false);
+        binary = new GameBenchmark.NullConnection(blackhole, true);
+    }
+
+    @Benchmark
+    public String formatMove() {
+        return "M " + position;
+    }
+
+    @Benchmark
+    public int parseMove() {
+        return Integer.parseInt(move.substring(2));
+    }
+
+    @Benchmark
+    public String formatValidation() {
+        String again = (position & 1) != 0 ? "Y" : "N";
+        return "V " + again + " " + position;
+    }
+
+    @Benchmark
+    public String formatSquare() {
+        return "S " + 'B' + " " + position;
+    }
+
+    @Benchmark
+    public int parseValidation() {
+        int parsed = Integer.parseInt(validation.substring(4));
+        return (validation.charAt(2) == 'Y') ? parsed : -parsed;
+    }
+
+    @Benchmark
+    public void encodeTextTurn() {
+        /* What a player receives for a move that completes a square. */
+        text.squareCompleted('B', position + 1);
+        text.moveValidated(true, position);
+        text.flush();
+    }
+
+    @Benchmark
+    public void encodeBinaryTurn() {
+        binary.squareCompleted('B', position + 1);
+        binary.moveValidated(true, position);
+        binary.flush();
+    }
+}
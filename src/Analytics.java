@@ -0,0 +1,428 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Ray Santana
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class Analytics {
+    /* Batch statistics over the games recorded in move journals. The
+       segment files are mapped read-only and cut into chunks that are
+       replayed in parallel, one task per chunk, so the work spreads over
+       every core and nothing but the games still open in a chunk is kept
+       on the heap. A game whose records fall in more than one chunk comes
+       back from each chunk as a fragment; fragments are stitched together
+       in file order, and a game is replayed as soon as its start and end
+       have both turned up, so only games still being stitched are held.
+       Every game is replayed on a Board, so boxes are scored by the same
+       rules as a live game. */
+    private static final int CHUNK_SIZE = 4 << 20; /* bytes */
+
+    public static void main(String[] args) throws Exception {
+        /* Usage: java Analytics [-threads n] directory...
+           Reads every journal segment in the given directories and prints
+           statistics for each grid size. */
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].startsWith("-")) {
+                System.out.println("Unknown option: " + args[i]);
+                return;
+            } else {
+                files.addAll(Journal.segmentFiles(Paths.get(args[i])));
+            }
+        }
+        if (files.isEmpty()) {
+            System.out.println("No journal segments found");
+            return;
+        }
+
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Summary summary = new Summary();
+        try {
+            List<Future<Chunk>> chunks = new ArrayList<>();
+            for (Path file : files) {
+                MappedByteBuffer segment = map(file);
+                for (int from = 0; from < segment.capacity();
+                     from += CHUNK_SIZE) {
+                    chunks.add(pool.submit(new Chunk(segment, from,
+                                                     from + CHUNK_SIZE)));
+                }
+            }
+            /* Fragments are merged in the order the chunks were written,
+               which keeps each game's moves in order. A chunk is let go
+               once its fragments are merged, so finished chunks and their
+               mappings do not pile up while later ones are read. */
+            Map<Long, GameRecord> fragments = new LinkedHashMap<>();
+            for (int i = 0; i < chunks.size(); i++) {
+                Chunk chunk = chunks.get(i).get();
+                chunks.set(i, null);
+                summary.add(chunk.summary);
+                for (Map.Entry<Long, GameRecord> entry
+                         : chunk.open.entrySet()) {
+                    GameRecord merged = fragments.get(entry.getKey());
+                    if (merged == null) {
+                        merged = entry.getValue();
+                        fragments.put(entry.getKey(), merged);
+                    } else {
+                        merged.append(entry.getValue());
+                    }
+                    if (merged.gridLength > 0 && merged.result != 0) {
+                        fragments.remove(entry.getKey());
+                        summary.replay(merged);
+                    }
+                }
+            }
+            /* Whatever is left never started or never ended here. */
+            for (GameRecord game : fragments.values()) {
+                summary.replay(game);
+            }
+        } finally {
+            pool.shutdown();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        summary.report(seconds, threads, files.size());
+    }
+
+    private static MappedByteBuffer map(Path file) throws IOException {
+        /* The mapping stays valid after the channel is closed. */
+        try (FileChannel channel = FileChannel.open(file,
+                 StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                               channel.size());
+        }
+    }
+
+    private static final class Chunk
+            implements Callable<Chunk>, Journal.Visitor {
+        /* Replays the games that start and end inside one chunk of a
+           segment, and keeps the rest as fragments. Chunk boundaries are
+           multiples of the record size, so no record is split. */
+        private final MappedByteBuffer segment;
+        private final int from;
+        private final int to;
+        final Summary summary = new Summary();
+        final Map<Long, GameRecord> open = new HashMap<>();
+
+        Chunk(MappedByteBuffer segment, int from, int to) {
+            this.segment = segment;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public Chunk call() {
+            Journal.scan(segment, from, to, this);
+            return this;
+        }
+
+        public void record(byte type, long game, int sequence, int value,
+                           char color, boolean goAgain) {
+            summary.records++;
+            GameRecord record = open.get(game);
+            if (record == null) {
+                record = new GameRecord();
+                open.put(game, record);
+            }
+            if (type == Journal.STARTED) {
+                record.gridLength = value;
+            } else if (type == Journal.MOVED) {
+                record.moved(sequence, value, color, goAgain);
+            } else if (type == Journal.ENDED) {
+                record.result = color;
+                record.forfeited = goAgain;
+                if (record.gridLength > 0) {
+                    open.remove(game);
+                    summary.replay(record);
+                }
+            }
+        }
+    }
+
+    private static final class GameRecord {
+        /* The records of one game, or of the part of it found in one
+           chunk. Moves are packed as position << 2 | red << 1 | extra
+           turn. */
+        int gridLength = 0;
+        char result = 0;
+        boolean forfeited = false;
+        int firstSequence = 0;
+        int count = 0;
+        int[] moves = new int[32];
+        boolean damaged = false;
+
+        void moved(int sequence, int position, char color, boolean goAgain) {
+            if (count == 0) {
+                firstSequence = sequence;
+            } else if (sequence != firstSequence + count) {
+                damaged = true;
+            }
+            if (count == moves.length) {
+                moves = Arrays.copyOf(moves, 2 * count);
+            }
+            moves[count++] = position << 2 | (color == 'R' ? 2 : 0)
+                           | (goAgain ? 1 : 0);
+        }
+
+        void append(GameRecord later) {
+            /* Add the fragment that follows this one in the journal. */
+            if (later.gridLength > 0) {
+                gridLength = later.gridLength;
+            }
+            if (later.result != 0) {
+                result = later.result;
+                forfeited = later.forfeited;
+            }
+            if (later.count > 0) {
+                if (count == 0) {
+                    firstSequence = later.firstSequence;
+                } else if (later.firstSequence != firstSequence + count) {
+                    damaged = true;
+                }
+                moves = Arrays.copyOf(moves, count + later.count);
+                System.arraycopy(later.moves, 0, moves, count, later.count);
+                count += later.count;
+            }
+            damaged |= later.damaged;
+        }
+    }
+
+    private static final class Stats {
+        /* Totals for one grid size. A chain is the boxes one player takes
+           in a single turn. */
+        long games;
+        long abandoned;
+        long forfeits;
+        long damaged;
+        long firstMoverWins;
+        long firstMoverLosses;
+        long ties;
+        long moves;
+        long extraTurns;
+        long chains;
+        long chainBoxes;
+        int longestChain;
+        final Histogram gameLength = new Histogram();
+
+        void add(Stats other) {
+            games += other.games;
+            abandoned += other.abandoned;
+            forfeits += other.forfeits;
+            damaged += other.damaged;
+            firstMoverWins += other.firstMoverWins;
+            firstMoverLosses += other.firstMoverLosses;
+            ties += other.ties;
+            moves += other.moves;
+            extraTurns += other.extraTurns;
+            chains += other.chains;
+            chainBoxes += other.chainBoxes;
+            longestChain = Math.max(longestChain, other.longestChain);
+            gameLength.add(other.gameLength);
+        }
+    }
+
+    private static final class Summary {
+        /* Statistics by grid size, plus games that could not be
+           replayed because their start or end was never recorded. */
+        long records;
+        long unfinished;
+        final Map<Integer, Stats> byGrid = new TreeMap<>();
+
+        void add(Summary other) {
+            records += other.records;
+            unfinished += other.unfinished;
+            for (Map.Entry<Integer, Stats> entry : other.byGrid.entrySet()) {
+                stats(entry.getKey()).add(entry.getValue());
+            }
+        }
+
+        private Stats stats(int gridLength) {
+            Stats stats = byGrid.get(gridLength);
+            if (stats == null) {
+                stats = new Stats();
+                byGrid.put(gridLength, stats);
+            }
+            return stats;
+        }
+
+        void replay(GameRecord game) {
+            /* Score the game move by move and check the result against
+               the journal. Nothing is added until the whole game has
+               replayed cleanly. */
+            if (game.gridLength == 0 || game.result == 0) {
+                ++unfinished;
+                return;
+            }
+            if (!Game.validGridLength(game.gridLength)) {
+                ++unfinished;
+                return;
+            }
+            Stats stats = stats(game.gridLength);
+            if (game.damaged || (game.count > 0 && game.firstSequence != 1)) {
+                ++stats.damaged;
+                return;
+            }
+            if (game.result == 'A') {
+                ++stats.abandoned;
+                return;
+            }
+
+            Board board = new Board(game.gridLength);
+            int bluePoints = 0;
+            int redPoints = 0;
+            int extraTurns = 0;
+            int chains = 0;
+            int chainBoxes = 0;
+            int longestChain = 0;
+            char firstMover = 0;
+            char turn = 0;
+            int turnBoxes = 0;
+            for (int i = 0; i <= game.count; i++) {
+                char color = 0;
+                int boxes = 0;
+                if (i < game.count) {
+                    int move = game.moves[i];
+                    boolean goAgain = (move & 1) != 0;
+                    color = ((move & 2) != 0) ? 'R' : 'B';
+                    int completed = board.play(move >>> 2);
+                    if (completed < 0 || (completed != 0) != goAgain) {
+                        ++stats.damaged;
+                        return;
+                    }
+                    boxes = Integer.bitCount(completed);
+                    if (goAgain) {
+                        ++extraTurns;
+                    }
+                    if (color == 'B') {
+                        bluePoints += boxes;
+                    } else {
+                        redPoints += boxes;
+                    }
+                    if (firstMover == 0) {
+                        firstMover = color;
+                    }
+                }
+                if (color != turn) {
+                    /* A turn ended; count what it captured. */
+                    if (turnBoxes > 0) {
+                        ++chains;
+                        chainBoxes += turnBoxes;
+                        longestChain = Math.max(longestChain, turnBoxes);
+                    }
+                    turn = color;
+                    turnBoxes = 0;
+                }
+                turnBoxes += boxes;
+            }
+            if (game.forfeited) {
+                /* Ended early, so the board is not full and the points
+                   need not match the result; the moves were checked. */
+                ++stats.forfeits;
+                return;
+            }
+            char winner = (bluePoints == redPoints) ? 'T'
+                        : (bluePoints > redPoints) ? 'B' : 'R';
+            if (winner != game.result
+             || bluePoints + redPoints != board.totalBoxes()) {
+                ++stats.damaged;
+                return;
+            }
+
+            ++stats.games;
+            if (winner == 'T') {
+                ++stats.ties;
+            } else if (winner == firstMover) {
+                ++stats.firstMoverWins;
+            } else {
+                ++stats.firstMoverLosses;
+            }
+            stats.moves += game.count;
+            stats.extraTurns += extraTurns;
+            stats.chains += chains;
+            stats.chainBoxes += chainBoxes;
+            stats.longestChain = Math.max(stats.longestChain, longestChain);
+            stats.gameLength.record(game.count);
+        }
+
+        void report(double seconds, int threads, int segments) {
+            System.out.printf("Read %d records from %d segments in %.2f s "
+                            + "on %d threads (%.1f million records/sec)%n",
+                              records, segments, seconds, threads,
+                              records / seconds / 1e6);
+            for (Map.Entry<Integer, Stats> entry : byGrid.entrySet()) {
+                Stats stats = entry.getValue();
+                long games = Math.max(1, stats.games);
+                System.out.printf("%nGrid length %d: %d games "
+                                + "(%d abandoned, %d forfeited, "
+                                + "%d damaged)%n",
+                                  entry.getKey(), stats.games,
+                                  stats.abandoned, stats.forfeits,
+                                  stats.damaged);
+                System.out.printf("  First mover: %.1f%% won, %.1f%% lost, "
+                                + "%.1f%% tied%n",
+                                  100.0 * stats.firstMoverWins / games,
+                                  100.0 * stats.firstMoverLosses / games,
+                                  100.0 * stats.ties / games);
+                System.out.printf("  Moves per game: mean %.1f, p50 %d, "
+                                + "p99 %d, max %d%n",
+                                  stats.gameLength.mean(),
+                                  stats.gameLength.percentile(50),
+                                  stats.gameLength.percentile(99),
+                                  stats.gameLength.max());
+                System.out.printf("  Extra turns: %.1f%% of moves%n",
+                                  100.0 * stats.extraTurns
+                                  / Math.max(1, stats.moves));
+                System.out.printf("  Chains: %.2f per game, mean length "
+                                + "%.2f boxes, longest %d%n",
+                                  (double) stats.chains / games,
+                                  (double) stats.chainBoxes
+                                  / Math.max(1, stats.chains),
+                                  stats.longestChain);
+            }
+            if (unfinished > 0) {
+                System.out.printf("%n%d games were not finished in these "
+                                + "journals%n", unfinished);
+            }
+        }
+    }
+}
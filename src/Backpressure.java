@@ -0,0 +1,53 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Ray Santana
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+final class Backpressure {
+    /* How many bytes may be waiting to be written to one player, and what
+       happens to a player who falls further behind. The connection is
+       dropped either way, so nothing but the slow client waits for it;
+       the seat is then held for the player to come back as after any
+       disconnect, or with forfeit the game is lost on the spot. */
+    static final int DEFAULT_LIMIT = 256; /* kilobytes */
+    final int limit; /* bytes */
+    private final boolean forfeit;
+
+    Backpressure(int limit, boolean forfeit) {
+        this.limit = limit;
+        this.forfeit = forfeit;
+    }
+
+    void overflowed(Game.Player... players) {
+        /* Called from the thread that found the connection over its
+           limit, before the connection drops itself. A multiplexed
+           connection forfeits all of its games. */
+        Metrics.SERVER.overflows.increment();
+        for (Game.Player player : players) {
+            if (forfeit && player != null) {
+                player.forfeit();
+            }
+        }
+    }
+}
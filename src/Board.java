@@ -0,0 +1,207 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Ray Santana
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+class Board {
+    /* Edge-bitset representation of a game grid. Protocol positions index a
+       square grid of dots, lines and box centres, but only the lines can be
+       played, so they are the only thing stored. Lines are numbered with
+       the horizontal ones first, row by row, followed by the vertical ones,
+       and kept in a single bit set. A box is complete when the bits of its
+       four sides are set, which makes applying a move a handful of bit
+       tests with no allocation. */
+    final int gridLength;
+    final int boxesPerSide;
+    private final int horizontalLines;
+    private final long[] lines;
+
+    public Board(int gridLength) {
+        this.gridLength = gridLength;
+        this.boxesPerSide = gridLength / 2;
+        /* (n+1) rows of n horizontal lines, n rows of (n+1) vertical ones. */
+        horizontalLines = (boxesPerSide + 1) * boxesPerSide;
+        lines = new long[(2 * horizontalLines + 63) >>> 6];
+    }
+
+    private Board(Board other) {
+        gridLength = other.gridLength;
+        boxesPerSide = other.boxesPerSide;
+        horizontalLines = other.horizontalLines;
+        lines = other.lines.clone();
+    }
+
+    public Board copy() {
+        return new Board(this);
+    }
+
+    public int play(int position) {
+        /* Draw the line at the given grid position. Returns a mask of the
+           boxes the line completed (bit 0 for the box above or to the left,
+           bit 1 for the box below or to the right), or -1 if the position
+           is not a line that can still be drawn. */
+        int line = lineAt(position);
+        if (line < 0 || isDrawn(line)) {
+            return -1;
+        }
+        return drawLine(line);
+    }
+
+    public int boxPosition(int position, int side) {
+        /* Grid position of the box on the given side (0 or 1, as in the
+           mask returned by play) of the line at position. */
+        int step = ((position / gridLength) & 1) == 0 ? gridLength : 1;
+        return (side == 0) ? position - step : position + step;
+    }
+
+    public int totalBoxes() {
+        return boxesPerSide * boxesPerSide;
+    }
+
+    public int lineCount() {
+        return 2 * horizontalLines;
+    }
+
+    public int lineAt(int position) {
+        /* Line number of a grid position, or -1 for dots, box centres and
+           positions off the grid. */
+        if (position < 0 || position >= gridLength * gridLength) {
+            return -1;
+        }
+        int row = position / gridLength;
+        int col = position % gridLength;
+        if (((row ^ col) & 1) == 0) {
+            return -1;
+        }
+        int n = boxesPerSide;
+        if ((row & 1) == 0) {
+            return (row >> 1) * n + (col >> 1);
+        }
+        return horizontalLines + (row >> 1) * (n + 1) + (col >> 1);
+    }
+
+    public int positionOf(int line) {
+        int n = boxesPerSide;
+        if (line < horizontalLines) {
+            return (2 * (line / n)) * gridLength + 2 * (line % n) + 1;
+        }
+        line -= horizontalLines;
+        return (2 * (line / (n + 1)) + 1) * gridLength + 2 * (line % (n + 1));
+    }
+
+    public boolean isDrawn(int line) {
+        return (lines[line >>> 6] & (1L << line)) != 0;
+    }
+
+    public int drawLine(int line) {
+        /* Draw a line that is not drawn yet and return the mask of boxes it
+           completed, as for play. */
+        lines[line >>> 6] |= 1L << line;
+        int completed = 0;
+        if (sidesOfBox(line, 0) == 4) {
+            completed |= 1;
+        }
+        if (sidesOfBox(line, 1) == 4) {
+            completed |= 2;
+        }
+        return completed;
+    }
+
+    public void eraseLine(int line) {
+        /* Undo drawLine; used by searches that play moves speculatively. */
+        lines[line >>> 6] &= ~(1L << line);
+    }
+
+    public int nextFreeLine(int from) {
+        /* First line numbered from or higher that is not drawn yet, or -1.
+           Skips over drawn lines a word at a time. */
+        int lineCount = lineCount();
+        if (from >= lineCount) {
+            return -1;
+        }
+        int word = from >>> 6;
+        long free = ~lines[word] & (-1L << from);
+        while (free == 0) {
+            if (++word == lines.length) {
+                return -1;
+            }
+            free = ~lines[word];
+        }
+        int line = (word << 6) + Long.numberOfTrailingZeros(free);
+        return (line < lineCount) ? line : -1;
+    }
+
+    public int boxSide(int box, int side) {
+        /* Line number of one side of a box, with boxes numbered row by
+           row: side 0 is the top, 1 the bottom, 2 the left and 3 the
+           right. */
+        int n = boxesPerSide;
+        int row = box / n;
+        int col = box % n;
+        switch (side) {
+            case 0:  return box;
+            case 1:  return box + n;
+            case 2:  return horizontalLines + row * (n + 1) + col;
+            default: return horizontalLines + row * (n + 1) + col + 1;
+        }
+    }
+
+    public int sidesDrawn(int box) {
+        return bit(boxSide(box, 0)) + bit(boxSide(box, 1))
+             + bit(boxSide(box, 2)) + bit(boxSide(box, 3));
+    }
+
+    public int mostSidesNextTo(int line) {
+        /* Highest number of sides already drawn on either box next to the
+           line. Drawing the line completes a box if this is 3 and hands the
+           opponent a box if it is 2. */
+        return Math.max(sidesOfBox(line, 0), sidesOfBox(line, 1));
+    }
+
+    private int sidesOfBox(int line, int side) {
+        /* Number of drawn sides of the box on the given side of a line, or
+           0 if the line is on the edge of the grid. */
+        int n = boxesPerSide;
+        int row;
+        int col;
+        if (line < horizontalLines) {
+            row = line / n - 1 + side;
+            col = line % n;
+        } else {
+            int vertical = line - horizontalLines;
+            row = vertical / (n + 1);
+            col = vertical % (n + 1) - 1 + side;
+        }
+        if (row < 0 || row >= n || col < 0 || col >= n) {
+            return 0;
+        }
+        int top = row * n + col;
+        int left = horizontalLines + row * (n + 1) + col;
+        return bit(top) + bit(top + n) + bit(left) + bit(left + 1);
+    }
+
+    private int bit(int line) {
+        return (int) (lines[line >>> 6] >>> line) & 1;
+    }
+}
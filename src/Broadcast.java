@@ -0,0 +1,210 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Ray Santana
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+class Broadcast {
+    /* Spectator stream of one game. The game records every line, square
+       and result in a compact history on its worker thread, which is
+       all a move costs when nobody is watching. The first spectator of a
+       framing creates a feed for it, which encodes the history so far and
+       from then on each move's events as one batch, into shared chunks.
+       Spectators read the chunks at their own pace, so an event is
+       encoded once per framing however many spectators there are, and
+       the players never wait for a spectator. A late spectator starts
+       reading at the beginning of the feed, which is a snapshot of the
+       game so far followed by the live events. */
+    private static final int LINE = 0;
+    private static final int SQUARE = 1;
+    private static final int END = 2;
+    private int[] history = new int[16];
+    private int historyLength = 0;
+    private final Feed[] feeds = new Feed[2];
+
+    /* Called on the game's worker. */
+
+    void lineDrawn(char color, int position) {
+        record(LINE, color, position);
+    }
+
+    void squareCompleted(char color, int position) {
+        record(SQUARE, color, position);
+    }
+
+    void gameEnded(char winner) {
+        record(END, winner, 0);
+    }
+
+    void publish() {
+        /* Make this move's events visible to spectators. */
+        for (Feed feed : feeds) {
+            if (feed != null) {
+                feed.flush();
+            }
+        }
+    }
+
+    void replay(int movesSeen, Connection connection) {
+        /* Send the lines and squares of the moves after the first
+           movesSeen, for a player catching up. */
+        int moves = 0;
+        for (int i = 0; i < historyLength; i++) {
+            if ((history[i] & 3) == LINE) {
+                ++moves;
+            }
+            if (moves > movesSeen) {
+                send(history[i], connection);
+            }
+        }
+    }
+
+    Feed feed(boolean binary) {
+        Feed feed = feeds[binary ? 1 : 0];
+        if (feed == null) {
+            feed = new Feed(binary);
+            for (int i = 0; i < historyLength; i++) {
+                feed.encode(history[i]);
+            }
+            feed.flush();
+            feeds[binary ? 1 : 0] = feed;
+        }
+        return feed;
+    }
+
+    private void record(int type, char color, int position) {
+        /* Events are packed as position << 4 | color << 2 | type. */
+        int event = position << 4 | colorCode(color) << 2 | type;
+        if (historyLength == history.length) {
+            history = Arrays.copyOf(history, 2 * historyLength);
+        }
+        history[historyLength++] = event;
+        for (Feed feed : feeds) {
+            if (feed != null) {
+                feed.encode(event);
+            }
+        }
+    }
+
+    private static int colorCode(char color) {
+        return (color == 'B') ? 0 : (color == 'R') ? 1
+             : (color == 'T') ? 2 : 3;
+    }
+
+    private static final char[] COLORS = {'B', 'R', 'T', 'A'};
+
+    private static void send(int event, Connection connection) {
+        int position = event >>> 4;
+        char color = COLORS[(event >>> 2) & 3];
+        switch (event & 3) {
+            case LINE:
+                connection.lineDrawn(color, position);
+                break;
+            case SQUARE:
+                connection.squareCompleted(color, position);
+                break;
+            default:
+                connection.gameEnded(color);
+                break;
+        }
+    }
+
+    static final class Feed extends StreamConnection {
+        /* Encoded events in fixed-size chunks that are never moved or
+           changed once written, so readers need no lock: the length is
+           published after the bytes, and a reader never looks past it. */
+        private static final int CHUNK_SIZE = 16 * 1024;
+        private volatile ByteBuffer[] chunks = new ByteBuffer[4];
+        private volatile long length = 0;
+        private volatile boolean ended = false;
+        private boolean endWritten = false;
+        private int chunkCount = 0;
+
+        Feed(boolean binary) {
+            this.binary = binary;
+        }
+
+        void encode(int event) {
+            send(event, this);
+            if ((event & 3) == END) {
+                endWritten = true;
+            }
+        }
+
+        protected void write(byte[] bytes, int offset, int size) {
+            /* Copy the batch into the chunks, then publish the new
+               length, and only then the end of the game. */
+            long end = length;
+            while (size > 0) {
+                int chunk = (int) (end / CHUNK_SIZE);
+                int at = (int) (end % CHUNK_SIZE);
+                if (chunk == chunkCount) {
+                    if (chunkCount == chunks.length) {
+                        chunks = Arrays.copyOf(chunks, 2 * chunkCount);
+                    }
+                    chunks[chunkCount++] = ByteBuffer.allocate(CHUNK_SIZE);
+                }
+                int count = Math.min(size, CHUNK_SIZE - at);
+                System.arraycopy(bytes, offset, chunks[chunk].array(), at,
+                                 count);
+                offset += count;
+                size -= count;
+                end += count;
+            }
+            length = end;
+            ended = endWritten;
+        }
+
+        ByteBuffer next(long offset) {
+            /* A view of the published bytes from offset to the end of
+               their chunk, or null if the reader has caught up. The view
+               shares the chunk's memory. */
+            long published = length;
+            if (offset >= published) {
+                return null;
+            }
+            ByteBuffer chunk = chunks[(int) (offset / CHUNK_SIZE)];
+            int from = (int) (offset % CHUNK_SIZE);
+            int to = (int) Math.min(CHUNK_SIZE,
+                         from + (published - offset));
+            ByteBuffer view = chunk.duplicate();
+            view.limit(to).position(from);
+            return view;
+        }
+
+        boolean finished(long offset) {
+            /* True once the game is over and the reader has it all. The
+               end flag is read first, so the length includes the end. */
+            return ended && offset >= length;
+        }
+
+        public void close() {}
+
+        public boolean isOpen() {
+            return true;
+        }
+    }
+}
@@ -24,240 +24,513 @@
  * SOFTWARE.
  */
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
 
 import java.awt.Color;
+import java.awt.Dimension;
 import java.awt.Font;
-import java.awt.GridLayout;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 
+import javax.swing.JComponent;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
-import javax.swing.JPanel;
 import javax.swing.JLabel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.UIManager;
 
-public class Client {
-    /* Variables required for graphics and logic portion of the game. Grid
-       length can be an odd number greater than 3 (ideally 5 < L < 21), and
-       both client and server must use the same value. */
-    private static final int GRID_LENGTH = 7;
+public class Client implements MessageListener {
+    /* Variables required for graphics and logic portion of the game. The
+       client asks for a grid length when it connects, but the server
+       decides the size of each game and announces it in the welcome
+       message. Squares shrink on large grids so the window stays on
+       screen. */
+    private static final int DEFAULT_GRID_LENGTH = 7;
+    private static final int MAX_BOARD_PIXELS = 700;
+    private int gridLength;
+    private int squareSize;
     private JFrame frame = new JFrame("Dots&Boxes");
     private JLabel messageLabel = new JLabel("");
-    private Square[] board = new Square[GRID_LENGTH * GRID_LENGTH];
-    private char playerColor;
+    private BoardCanvas board;
+    private volatile char playerColor;
+    private volatile boolean binary;
+
+    /* Changes decoded from the server's messages, waiting for the next
+       frame. The reader thread never touches Swing components; it records
+       what changed here and the Event Dispatch Thread applies it all at
+       once per frame, so a burst of messages costs one repaint. */
+    private static final int FRAME_INTERVAL = 16; /* milliseconds */
+    private final Object updateLock = new Object();
+    private int newGridLength = 0;
+    private HashMap<Integer, Color> newColors = new HashMap<>();
+    private String newMessage;
+    private final Timer frameTimer = new Timer(FRAME_INTERVAL,
+                                               event -> applyUpdates());
 
     /* Variables required for network portion of game. Client must use the
-       same port that the server socket is listening to. */
+       same port that the server socket is listening to. The input is not
+       read through a Reader, because the server switches to binary frames
+       after the welcome message. If the connection is lost during a game,
+       the client reconnects with its session token and the number of
+       moves it has seen, and the server sends the moves it missed. */
     private static final int PORT = 8901;
-    private BufferedReader inBuffer;
-    private PrintWriter outBuffer;
-    private Socket socket;
+    private static final int RECONNECT_ATTEMPTS = 5;
+    private static final int RECONNECT_DELAY = 500; /* milliseconds */
+    private final String serverAddress;
+    private volatile DataInputStream inBuffer;
+    private volatile OutputStream outBuffer;
+    private volatile Socket socket;
+    private long token = 0;
+    private int movesSeen = 0;
+    private int reconnectsLeft = RECONNECT_ATTEMPTS;
     
-    public Client(String serverAddress) {
-        /* Open socket and buffers to communicate with the server. */
+    public Client(String serverAddress, int requestedGridLength) {
+        /* Open socket and buffers to communicate with the server, and ask
+           for the grid size this player would like, with binary framing. */
+        this(serverAddress, "G " + requestedGridLength + " B");
+    }
+
+    public Client(String serverAddress, String hello) {
+        /* Connect with the given hello, which is a G message to play or
+           an A message to watch a game. */
+        this.serverAddress = serverAddress;
         try {
-            socket = new Socket(serverAddress, PORT);
-            inBuffer = new BufferedReader(
-                       new InputStreamReader(socket.getInputStream()));
-            outBuffer = new PrintWriter(socket.getOutputStream(), true);
+            connect(hello);
         } catch (IOException error) {
             error.printStackTrace();
         }
 
-        /* Add game graphics and message label to the window frame. */
-        JPanel boardPanel = new JPanel();
-        boardPanel.setBackground(Color.BLACK);
-        boardPanel.setLayout(new GridLayout(GRID_LENGTH, GRID_LENGTH));
-        for (int i = 0; i < board.length; i++) {
-            board[i] = new Square(i);
-            boardPanel.add(board[i]);
-        }
         messageLabel.setOpaque(true);
         messageLabel.setBackground(Color.LIGHT_GRAY);
         messageLabel.setHorizontalAlignment(JLabel.CENTER);
         messageLabel.setFont(new Font("Serif", Font.BOLD, 14));
-        frame.getContentPane().add(boardPanel, "Center");
         frame.getContentPane().add(messageLabel, "South");
     }
 
-    private class Square extends JPanel {
-        /* This class handles the individual squares (50px by 50px) that
-           make up the game's grid. */
+    private void connect(String hello) throws IOException {
+        Socket connection = new Socket(serverAddress, PORT);
+        connection.setTcpNoDelay(true);
+        inBuffer = new DataInputStream(
+                   new BufferedInputStream(connection.getInputStream()));
+        outBuffer = connection.getOutputStream();
+        socket = connection;
+        outBuffer.write((hello + "\n").getBytes(StandardCharsets.US_ASCII));
+        outBuffer.flush();
+    }
+
+    private boolean reconnect() {
+        /* Try to get back into the game after losing the connection.
+           Attempts are only renewed by a welcome, so a server that no
+           longer knows the game is not retried forever. */
+        if (token == 0) {
+            return false;
+        }
+        while (reconnectsLeft > 0) {
+            --reconnectsLeft;
+            showMessage("Connection lost, reconnecting...");
+            try {
+                socket.close();
+                Thread.sleep(RECONNECT_DELAY);
+                connect("R " + Long.toHexString(token) + " " + movesSeen
+                        + " B");
+                return true;
+            } catch (IOException | InterruptedException e) {}
+        }
+        return false;
+    }
+
+    private void createBoard(int length) {
+        /* Add game graphics for the grid size chosen by the server to the
+           window frame. Set window size to the grid size plus extra space
+           for other graphical components. */
+        gridLength = length;
+        squareSize = Math.max(2, Math.min(50, MAX_BOARD_PIXELS / length));
+        board = new BoardCanvas();
+        frame.getContentPane().add(board, "Center");
+        frame.setSize(gridLength*squareSize+10, gridLength*squareSize+50);
+        frame.setResizable(false);
+        frame.setVisible(true);
+    }
+
+    private class BoardCanvas extends JComponent {
+        /* The whole grid drawn by one component. Each position of the grid
+           is a square (up to 50px by 50px) holding a dot, a line or a box;
+           shapes are laid out on a 50 unit square and scaled to the actual
+           square size. A change repaints only its own square, and a paint
+           only draws the squares inside the clip, so large boards cost
+           the same per move as small ones. Clicks are mapped to positions
+           by dividing by the square size. */
         private static final long serialVersionUID = 1L;
-        private Color lineColor = Color.LIGHT_GRAY;
-        private int position;
-        
-
-        public Square(int pos) {
-            this.position = pos;
-
-            MouseAdapter mouseEvent = new MouseAdapter() {
-                public void mousePressed(MouseEvent e) {
-                    /* Inform the server to determine if the player's
-                       move is valid. */
-                    outBuffer.println("M " + pos);
-                }
-            };
+        private final Color[] colors = new Color[gridLength * gridLength];
+
+        BoardCanvas() {
+            setOpaque(true);
+            setBackground(UIManager.getColor("Panel.background"));
+            setPreferredSize(new Dimension(gridLength * squareSize,
+                                           gridLength * squareSize));
+            for (int i = 1; i < colors.length; i += 2) {
+                colors[i] = Color.LIGHT_GRAY;
+            }
+            if (playerColor != 'S') {
+                addMouseListener(new MouseAdapter() {
+                    public void mousePressed(MouseEvent e) {
+                        clicked(e.getX(), e.getY());
+                    }
+                });
+            }
+        }
 
-            if (pos % 2 != 0) {
-                /* Add a mouse listener to appropriate parts of the grid. */
-                this.addMouseListener(mouseEvent);
+        private void clicked(int x, int y) {
+            /* Inform the server to determine if the player's move is
+               valid, if a line was clicked. */
+            int column = x / squareSize;
+            int row = y / squareSize;
+            if (x < 0 || y < 0 || column >= gridLength || row >= gridLength) {
+                return;
+            }
+            int position = row * gridLength + column;
+            if (position % 2 != 0) {
+                try {
+                    Protocol.writeMove(outBuffer, binary, position);
+                } catch (IOException error) {
+                    messageLabel.setText("Connection lost");
+                }
             }
         }
 
+        void setColor(int position, Color color) {
+            colors[position] = color;
+            repaint((position % gridLength) * squareSize,
+                    (position / gridLength) * squareSize,
+                    squareSize, squareSize);
+        }
+
         @Override
         public void paintComponent(Graphics g) {
-            super.paintComponent(g);
-            
             /* Turn on anti-aliasing so the grid dots look better. */
             Graphics2D gDraw = (Graphics2D) g;
             gDraw.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
                                    RenderingHints.VALUE_ANTIALIAS_ON);
 
-            int row = this.position / GRID_LENGTH;
-            if (this.position % 2 != 0) {
-                g.setColor(lineColor);
+            int s = squareSize;
+            Rectangle clip = g.getClipBounds();
+            if (clip == null) {
+                clip = new Rectangle(0, 0, getWidth(), getHeight());
+            }
+            g.setColor(getBackground());
+            g.fillRect(clip.x, clip.y, clip.width, clip.height);
+            int firstColumn = Math.max(0, clip.x / s);
+            int lastColumn = Math.min(gridLength - 1,
+                                      (clip.x + clip.width - 1) / s);
+            int firstRow = Math.max(0, clip.y / s);
+            int lastRow = Math.min(gridLength - 1,
+                                   (clip.y + clip.height - 1) / s);
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int column = firstColumn; column <= lastColumn;
+                     column++) {
+                    paintSquare(g, row * gridLength + column, row,
+                                column * s, row * s, s);
+                }
+            }
+        }
+
+        private void paintSquare(Graphics g, int position, int row,
+                                 int x, int y, int s) {
+            if (position % 2 != 0) {
+                g.setColor(colors[position]);
                 if (row % 2 == 0) {
                     /* Draw a horizontal line on the grid. */
-                    g.fillRect(0, 17, 50, 16);
+                    g.fillRect(x, y + 17*s/50, s, 16*s/50);
                 } else {
                     /* Draw a vertical line on the grid. */
-                    g.fillRect(17, 0, 16, 50);
+                    g.fillRect(x + 17*s/50, y, 16*s/50, s);
                 }
             } else if (row % 2 == 0) {
                 /* Draw the grid vertices. */
                 g.setColor(Color.GRAY);
-                g.fillOval(10, 10, 30, 30);
-                g.fillRect(6, 17, 38, 16);
-                g.fillRect(17, 6, 16, 38);
+                g.fillOval(x + 10*s/50, y + 10*s/50, 30*s/50, 30*s/50);
+                g.fillRect(x + 6*s/50, y + 17*s/50, 38*s/50, 16*s/50);
+                g.fillRect(x + 17*s/50, y + 6*s/50, 16*s/50, 38*s/50);
+            } else if (colors[position] != null) {
+                /* Fill a completed box with its owner's color. */
+                g.setColor(colors[position]);
+                g.fillRect(x, y, s, s);
             }
         }
     }
 
     private void endGame() {
         /* Close socket and window when player quits. */
-        outBuffer.println("Q " + playerColor);
         try {
+            if (playerColor != 'S') {
+                Protocol.writeQuit(outBuffer, binary, playerColor);
+            }
             socket.close();
         } catch (IOException e) {}
         frame.dispose();
     }
 
     private boolean playAgain() {
-        /* Ask the player if they would like to play again. */
+        /* Ask the player if they would like to play (or watch) again. */
         int response = JOptionPane.showConfirmDialog(frame,
-                       "Play again?", messageLabel.getText(),
+                       (playerColor == 'S') ? "Watch again?" : "Play again?",
+                       messageLabel.getText(),
                        JOptionPane.YES_NO_OPTION);
         frame.dispose();
         return (response == JOptionPane.YES_OPTION);
     }
 
-    private void readMessages() throws IOException {
-        Boolean endGame = false;
+    static void readMessages(DataInputStream input, MessageListener listener)
+            throws IOException {
+        /* Decode messages from the server and pass them to the listener
+           until the game ends. Shared by the Swing client and the headless
+           load generator. Once the welcome message has agreed on binary
+           framing the rest of the game is read as frames. */
+        boolean endGame = false;
+        boolean binary = false;
         String response;
-        int position;
-        char msgType;
      
         while (!endGame) {
-            response = inBuffer.readLine();
-            msgType = response.isEmpty() ? ' ' : response.charAt(0);
-            switch (msgType) {
-                case 'S': /* Grid square has been completed */
-                    position = Integer.parseInt(response.substring(4));
-                    board[position].setBackground(
-                        (response.charAt(2) == 'B') ? Color.BLUE : Color.RED);
-                    break;
+            if (binary) {
+                endGame = Protocol.readFrame(input, listener);
+                continue;
+            }
+            response = Protocol.readLine(input);
+            if (response == null) {
+                throw new EOFException("Server closed the connection");
+            }
+            endGame = readMessage(response, listener);
+            binary = response.startsWith("W ") && response.endsWith(" B");
+        }
+    }
 
-                case 'V': /* Server message validating player's move. */
-                    if (response.charAt(2) == 'Y') {
-                        /* Player completed a grid square; can move again. */
-                        messageLabel.setText("Valid move, go again.");
-                    } else {
-                        messageLabel.setText("Opponent's turn, please wait");
-                    }
-                    /* Set color of the grid line chosen by the player. */
-                    position = Integer.parseInt(response.substring(4));
-                    board[position].lineColor =
-                                (playerColor == 'B') ? Color.BLUE : Color.RED;
-                    board[position].repaint();
-                    break;
+    static boolean readMessage(String response, MessageListener listener) {
+        /* Decode one text message. Returns true if it ended the game. */
+        int position;
+        char msgType = response.isEmpty() ? ' ' : response.charAt(0);
+        switch (msgType) {
+            case 'W': /* Welcome message with color, grid length and
+                         framing. */
+                String[] fields = response.split(" ");
+                listener.welcome(response.charAt(2), fields.length > 2
+                                 ? Integer.parseInt(fields[2])
+                                 : DEFAULT_GRID_LENGTH,
+                                 fields.length > 3 && fields[3].equals("B"));
+                break;
 
-                case 'O': /* Server message validating opponent's move. */
-                    if (response.charAt(2) == 'Y') {
-                        /* Opponent completed a grid square; can move again. */
-                        messageLabel.setText("Opponent goes again.");
-                    } else {
-                        messageLabel.setText("Your turn.");
-                    }
-                    position = Integer.parseInt(response.substring(4));
-                    board[position].lineColor =
-                                (playerColor == 'B') ? Color.RED : Color.BLUE;
-                    board[position].repaint();
-                    break;
+            case 'S': /* Grid square has been completed */
+                position = Integer.parseInt(response.substring(4));
+                listener.squareCompleted(response.charAt(2), position);
+                break;
 
-                case 'E': /* Game ended and winner is determined by server. */
-                    if (response.charAt(2) == playerColor) {
-                        messageLabel.setText("YOU WON :)");
-                    } else if (response.charAt(2) == 'T') {
-                        messageLabel.setText("YOU TIED");
-                    } else {
-                        messageLabel.setText("YOU LOST :(");
-                    }
-                    endGame = true;
-                    break;
+            case 'L': /* Line drawn, sent to spectators. */
+                position = Integer.parseInt(response.substring(4));
+                listener.lineDrawn(response.charAt(2), position);
+                break;
 
-                case 'I': /* Generic message received from server. */
-                    messageLabel.setText(response.substring(2));
-                    break;
+            case 'V': /* Server message validating player's move. */
+                position = Integer.parseInt(response.substring(4));
+                listener.moveValidated(response.charAt(2) == 'Y', position);
+                break;
+
+            case 'O': /* Server message validating opponent's move. */
+                position = Integer.parseInt(response.substring(4));
+                listener.opponentMoved(response.charAt(2) == 'Y', position);
+                break;
+
+            case 'E': /* Game ended and winner is determined by server. */
+                listener.gameEnded(response.charAt(2));
+                return true;
+
+            case 'K': /* Session token for reconnecting. */
+                listener.session(
+                    Long.parseUnsignedLong(response.substring(2), 16));
+                break;
+
+            case 'I': /* Generic message received from server. */
+                listener.information(response.substring(2));
+                break;
+        }
+        return false;
+    }
+
+    public void welcome(char color, int length, boolean binary) {
+        /* Get player's color, the grid length and the framing from the
+           server. */
+        playerColor = color;
+        this.binary = binary;
+        reconnectsLeft = RECONNECT_ATTEMPTS;
+        synchronized (updateLock) {
+            newGridLength = length;
+        }
+    }
+
+    public void session(long token) {
+        this.token = token;
+    }
+
+    public void squareCompleted(char color, int position) {
+        setColor(position, (color == 'B') ? Color.BLUE : Color.RED);
+    }
+
+    public void lineDrawn(char color, int position) {
+        ++movesSeen;
+        setColor(position, (color == 'B') ? Color.BLUE : Color.RED);
+    }
+
+    public void moveValidated(boolean goAgain, int position) {
+        ++movesSeen;
+        if (goAgain) {
+            /* Player completed a grid square; can move again. */
+            showMessage("Valid move, go again.");
+        } else {
+            showMessage("Opponent's turn, please wait");
+        }
+        /* Set color of the grid line chosen by the player. */
+        setColor(position,
+                 (playerColor == 'B') ? Color.BLUE : Color.RED);
+    }
+
+    public void opponentMoved(boolean goAgain, int position) {
+        ++movesSeen;
+        if (goAgain) {
+            /* Opponent completed a grid square; can move again. */
+            showMessage("Opponent goes again.");
+        } else {
+            showMessage("Your turn.");
+        }
+        setColor(position,
+                 (playerColor == 'B') ? Color.RED : Color.BLUE);
+    }
+
+    public void gameEnded(char winner) {
+        if (playerColor == 'S') {
+            showMessage((winner == 'B') ? "BLUE WON"
+                      : (winner == 'R') ? "RED WON"
+                      : (winner == 'T') ? "TIE" : "ABANDONED");
+        } else if (winner == playerColor) {
+            showMessage("YOU WON :)");
+        } else if (winner == 'T') {
+            showMessage("YOU TIED");
+        } else if (winner == 'A') {
+            showMessage("OPPONENT LEFT");
+        } else {
+            showMessage("YOU LOST :(");
+        }
+    }
+
+    public void information(String message) {
+        showMessage(message);
+    }
+
+    private void setColor(int position, Color color) {
+        /* Called by the reader; a position changed twice before the next
+           frame is only drawn once, in its last color. */
+        synchronized (updateLock) {
+            newColors.put(position, color);
+        }
+    }
+
+    private void showMessage(String message) {
+        synchronized (updateLock) {
+            newMessage = message;
+        }
+    }
+
+    private void applyUpdates() {
+        /* Runs on the Event Dispatch Thread once per frame, and shows
+           everything the reader has decoded since the last frame. */
+        int length;
+        HashMap<Integer, Color> colors;
+        String message;
+        synchronized (updateLock) {
+            length = newGridLength;
+            colors = newColors;
+            message = newMessage;
+            newGridLength = 0;
+            newMessage = null;
+            if (colors.isEmpty()) {
+                colors = null;
+            } else {
+                newColors = new HashMap<>();
+            }
+        }
+        if (length > 0 && board == null) {
+            String colorLabel = (playerColor == 'B') ? "Blue Player"
+                              : (playerColor == 'R') ? "Red Player"
+                              : "Spectator";
+            frame.setTitle("Dots & Boxes - " + colorLabel);
+            createBoard(length);
+        }
+        if (colors != null) {
+            for (Map.Entry<Integer, Color> change : colors.entrySet()) {
+                board.setColor(change.getKey(), change.getValue());
             }
         }
+        if (message != null) {
+            messageLabel.setText(message);
+        }
     }
 
     public void play() {
-        String serverMessage;
-
-        try {
-            while (true) {
-                /* Get player's color from the server welcome (W) message.
-                   Append space to prevent error from reading empty string. */
-                serverMessage = inBuffer.readLine() + " ";
-                if (serverMessage.charAt(0) == 'W') {
-                    playerColor = serverMessage.charAt(2);
-                    String colorLabel = (playerColor == 'B') ? "Blue" : "Red";
-                    frame.setTitle("Dots & Boxes - " + colorLabel + " Player");
+        /* Read messages from server on this thread while the Event
+           Dispatch Thread shows them a frame at a time. Once the game is
+           over, the last updates are shown before returning. */
+        frameTimer.start();
+        while (true) {
+            try {
+                readMessages(inBuffer, this);
+                break;
+            } catch (Exception error) {
+                if (!reconnect()) {
+                    error.printStackTrace();
+                    showMessage("Connection lost");
+                    try {
+                        socket.close();
+                    } catch (IOException e) {}
                     break;
                 }
             }
-
-            /* Read messages from server; change message label accordingly. */
-            readMessages();
-        } catch (Exception error) {
-            error.printStackTrace();
-            try {
-                socket.close();
-            } catch (IOException e) {}
         }
+        frameTimer.stop();
+        try {
+            SwingUtilities.invokeAndWait(this::applyUpdates);
+        } catch (Exception e) {}
     }
 
     public static void main(String[] args) throws Exception{
         /* Determine whether the client should connect to a local server or
-           to a server IP address provided by the player. Set window size
-           to the grid size plus extra space for other graphical components. */
+           to a server IP address provided by the player, and which grid
+           length to ask for, with the name to be rated by, or whether to
+           watch a game instead:
+           java Client [address] [grid length [name] | watch [game id]].
+           The window is sized once the server has announced the grid
+           length. */
         String serverAddress = (args.length == 0) ? "localhost" : args[0];
+        String hello;
+        if (args.length > 1 && args[1].equals("watch")) {
+            hello = (args.length > 2) ? "A " + args[2] + " B" : "A B";
+        } else {
+            hello = "G " + ((args.length < 2) ? DEFAULT_GRID_LENGTH
+                                              : Integer.parseInt(args[1]))
+                  + ((args.length > 2) ? " " + args[2] : "") + " B";
+        }
         while (true) {
-            Client player = new Client(serverAddress);
+            Client player = new Client(serverAddress, hello);
             player.frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-            player.frame.setSize(GRID_LENGTH*50+10, GRID_LENGTH*50+50);
-            player.frame.setVisible(true);
-            player.frame.setResizable(false);
             player.play();
 
             if (!player.playAgain()) {
@@ -0,0 +1,124 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Ray Santana
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+class ComputerPlayer implements Connection {
+    /* Seats the engine in a game as if it were a remote player: it reads
+       the messages the server sends to its seat to follow the game, and
+       plays through the same entry point as a move command, so its
+       moves go through the same rules as everyone else's. Searches run
+       off the game's threads. */
+    private static final ExecutorService turns =
+        Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "computer-player");
+            thread.setDaemon(true);
+            return thread;
+        });
+    private final Engine engine;
+    private Game.Player player;
+    private Board board;
+    private volatile boolean over = false;
+
+    private ComputerPlayer(Engine engine) {
+        this.engine = engine;
+    }
+
+    public static Game.Player seat(Game game, char color, Engine engine) {
+        ComputerPlayer computer = new ComputerPlayer(engine);
+        computer.player = game.new Player(computer, color, "computer");
+        return computer.player;
+    }
+
+    public static void rejoin(Game.Player seat, Engine engine) {
+        /* Take back the computer's seat in a game rebuilt from the
+           journal. The game replays the lines drawn so far to the new
+           board before asking for a move. */
+        ComputerPlayer computer = new ComputerPlayer(engine);
+        computer.player = seat;
+        seat.resume(computer, 0);
+    }
+
+    public synchronized void welcome(char color, int gridLength) {
+        board = new Board(gridLength);
+    }
+
+    public void session(long token) {}
+
+    public synchronized void information(String message) {
+        if (message.equals("Your move")) {
+            think();
+        }
+    }
+
+    public synchronized void moveValidated(boolean goAgain, int position) {
+        board.play(position);
+        if (goAgain) {
+            think();
+        }
+    }
+
+    public synchronized void opponentMoved(boolean goAgain, int position) {
+        board.play(position);
+        if (!goAgain) {
+            think();
+        }
+    }
+
+    public void squareCompleted(char color, int position) {}
+
+    public synchronized void lineDrawn(char color, int position) {
+        board.play(position);
+    }
+
+    public void gameEnded(char winner) {
+        over = true;
+    }
+
+    public void flush() {}
+
+    public void close() {
+        over = true;
+    }
+
+    public boolean isOpen() {
+        return !over;
+    }
+
+    private void think() {
+        if (over || board.nextFreeLine(0) < 0) {
+            return;
+        }
+        Board position = board.copy();
+        turns.execute(() -> {
+            int move = engine.bestMove(position);
+            if (!over && move >= 0) {
+                player.move(move);
+            }
+        });
+    }
+}
@@ -0,0 +1,511 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Ray Santana
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Engine {
+    /* Computer opponent. Moves are chosen by an alpha-beta search that is
+       deepened one ply at a time until the per-move time budget runs out.
+       A value is the difference between the boxes the player to move and
+       the opponent will still take, so a position is worth the same no
+       matter whose turn it is or what the score is, and the transposition
+       table can be shared by every game the engine plays on a grid size.
+       Completing a box keeps the turn, so those moves are searched without
+       swapping sides, and they are tried first. The moves at the root are
+       searched in parallel on a ForkJoinPool. With a tablebase, positions
+       where every move opens a chain or a loop are not searched but looked
+       up, which settles long endgames at any depth. */
+    private static final int INFINITY = 1 << 20;
+    private static final int EXACT = 0;
+    private static final int LOWER = 1;
+    private static final int UPPER = 2;
+    private static final int VALUE_OFFSET = 1 << 17;
+    private static final int CHECK_INTERVAL = 1023; /* nodes, minus one */
+    private static final Timeout TIMEOUT = new Timeout();
+
+    private final ForkJoinPool pool;
+    private final Tablebase tablebase;
+    private final long thinkNanos;
+    private final long[] table; /* key ^ data, data */
+    private final int tableMask;
+    private final ConcurrentHashMap<Integer, long[]> zobristKeys =
+        new ConcurrentHashMap<>();
+    final LongAdder nodes = new LongAdder();
+    final LongAdder searches = new LongAdder();
+    final LongAdder depths = new LongAdder();
+
+    public Engine(int threads, int tableMegabytes, long thinkMillis) {
+        this(threads, tableMegabytes, thinkMillis, null);
+    }
+
+    public Engine(int threads, int tableMegabytes, long thinkMillis,
+                  Tablebase tablebase) {
+        pool = new ForkJoinPool(threads);
+        this.tablebase = tablebase;
+        thinkNanos = thinkMillis * 1000000L;
+        long entries = Long.highestOneBit(
+            Math.max(1, (long) tableMegabytes * 1024 * 1024 / 16));
+        entries = Math.min(entries, 1 << 29);
+        table = new long[(int) (2 * entries)];
+        tableMask = (int) entries - 1;
+    }
+
+    public int bestMove(Board board) {
+        /* Grid position of the move to play on the board, or -1 if every
+           line is drawn. The board itself is not changed. */
+        long[] keys = zobristKeys.computeIfAbsent(board.gridLength,
+                          length -> newKeys(board.lineCount(), length));
+        long hash = 0;
+        for (int line = 0; line < board.lineCount(); line++) {
+            if (board.isDrawn(line)) {
+                hash ^= keys[line];
+            }
+        }
+        Search search = new Search(board, keys, hash,
+                                   System.nanoTime() + thinkNanos);
+        Worker worker = new Worker(search, board.copy());
+        int[] moves = new int[board.lineCount()];
+        int count = worker.orderedMoves(moves, -1);
+        if (count == 0) {
+            return -1;
+        }
+
+        int best = moves[0];
+        int depth = 1;
+        for (; count > 1 && depth <= count; depth++) {
+            search.depth = depth;
+            RootSearch root = new RootSearch(search, moves, count);
+            pool.invoke(root);
+            if (search.aborted && depth > 1) {
+                --depth;
+                break;
+            }
+            /* Search this iteration's best move first in the next one. */
+            best = root.bestLine;
+            for (int i = 0; i < count; i++) {
+                if (moves[i] == best) {
+                    moves[i] = moves[0];
+                    moves[0] = best;
+                    break;
+                }
+            }
+            if (System.nanoTime() > search.deadline) {
+                break;
+            }
+        }
+        searches.increment();
+        depths.add(Math.min(depth, count));
+        return board.positionOf(best);
+    }
+
+    private static long[] newKeys(int lineCount, int gridLength) {
+        Random random = new Random(gridLength);
+        long[] keys = new long[lineCount];
+        for (int i = 0; i < lineCount; i++) {
+            keys[i] = random.nextLong();
+        }
+        return keys;
+    }
+
+    private long probe(long hash) {
+        /* Entries are stored as (key ^ data, data), so an entry torn by two
+           threads writing at once fails the key check instead of returning
+           bad data. Returns 0 when there is no usable entry. */
+        int slot = ((int) hash & tableMask) << 1;
+        long data = table[slot + 1];
+        return ((table[slot] ^ data) == hash) ? data : 0;
+    }
+
+    private void store(long hash, int depth, int flag, int value, int line) {
+        int slot = ((int) hash & tableMask) << 1;
+        long old = table[slot + 1];
+        if ((table[slot] ^ old) == hash && depthOf(old) > depth) {
+            return;
+        }
+        long data = (long) (value + VALUE_OFFSET)
+                  | (long) Math.min(depth, 255) << 18
+                  | (long) flag << 26
+                  | (long) (line + 1) << 28;
+        table[slot] = hash ^ data;
+        table[slot + 1] = data;
+    }
+
+    private static int valueOf(long data) {
+        return (int) (data & 0x3ffff) - VALUE_OFFSET;
+    }
+
+    private static int depthOf(long data) {
+        return (int) (data >>> 18) & 0xff;
+    }
+
+    private static int flagOf(long data) {
+        return (int) (data >>> 26) & 3;
+    }
+
+    private static int lineOf(long data) {
+        return (int) (data >>> 28) - 1;
+    }
+
+    private static final class Timeout extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Timeout() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final class Search {
+        /* State shared by the workers of one iteration. */
+        final Board board;
+        final long[] keys;
+        final long hash;
+        final long deadline;
+        volatile int depth;
+        volatile boolean aborted;
+
+        Search(Board board, long[] keys, long hash, long deadline) {
+            this.board = board;
+            this.keys = keys;
+            this.hash = hash;
+            this.deadline = deadline;
+        }
+    }
+
+    private final class RootSearch extends RecursiveAction {
+        /* One iteration at the root. The first move is searched alone to
+           get a bound, then the others are searched in parallel against
+           the best value found so far. */
+        private static final long serialVersionUID = 1L;
+        private final Search search;
+        private final int[] moves;
+        private final int count;
+        int bestLine;
+        private int bestValue;
+
+        RootSearch(Search search, int[] moves, int count) {
+            this.search = search;
+            this.moves = moves;
+            this.count = count;
+        }
+
+        @Override
+        protected void compute() {
+            search.aborted = false;
+            bestLine = moves[0];
+            bestValue = -INFINITY;
+            new RootMove(this, moves[0]).compute();
+            if (search.aborted) {
+                return;
+            }
+            RootMove[] tasks = new RootMove[count - 1];
+            for (int i = 1; i < count; i++) {
+                tasks[i - 1] = new RootMove(this, moves[i]);
+            }
+            invokeAll(tasks);
+        }
+
+        synchronized int alpha() {
+            return bestValue;
+        }
+
+        synchronized void offer(int line, int value) {
+            if (value > bestValue) {
+                bestValue = value;
+                bestLine = line;
+            }
+        }
+    }
+
+    private final class RootMove extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final RootSearch root;
+        private final int line;
+
+        RootMove(RootSearch root, int line) {
+            this.root = root;
+            this.line = line;
+        }
+
+        @Override
+        protected void compute() {
+            /* A value above the alpha it was searched with is exact, since
+               the root window has no upper bound. */
+            Search search = root.search;
+            Worker worker = new Worker(search, search.board.copy());
+            try {
+                int alpha = root.alpha();
+                int value = worker.rootMove(line, alpha);
+                if (value > alpha) {
+                    root.offer(line, value);
+                }
+            } catch (Timeout e) {
+                search.aborted = true;
+            } finally {
+                nodes.add(worker.nodes);
+            }
+        }
+    }
+
+    private final class Worker {
+        /* Searches on a private copy of the board. */
+        private final Search search;
+        private final Board board;
+        private final int[][] moveLists;
+        private final int[] captures;
+        private final Tablebase.Probe probe;
+        private long nodes = 0;
+
+        Worker(Search search, Board board) {
+            this.search = search;
+            this.board = board;
+            this.moveLists = new int[search.depth + 1][];
+            this.captures = new int[board.totalBoxes() + 1];
+            this.probe = (tablebase == null) ? null : tablebase.probe(board);
+        }
+
+        int rootMove(int line, int alpha) {
+            int depth = search.depth;
+            int completed = Integer.bitCount(board.drawLine(line));
+            long hash = search.hash ^ search.keys[line];
+            if (completed > 0) {
+                return completed + alphaBeta(hash, depth - 1, 1,
+                    alpha - completed, INFINITY);
+            }
+            return -alphaBeta(hash, depth - 1, 1, -INFINITY, -alpha);
+        }
+
+        private int alphaBeta(long hash, int depth, int ply,
+                              int alpha, int beta) {
+            if ((++nodes & CHECK_INTERVAL) == 0
+             && (search.aborted || (search.depth > 1
+                                 && System.nanoTime() > search.deadline))) {
+                throw TIMEOUT;
+            }
+            if (probe != null) {
+                int value = probe.value();
+                if (value != Tablebase.UNKNOWN) {
+                    return value;
+                }
+            }
+            if (depth <= 0) {
+                return takeCaptures();
+            }
+
+            int hashLine = -1;
+            long entry = probe(hash);
+            if (entry != 0) {
+                hashLine = lineOf(entry);
+                if (depthOf(entry) >= depth) {
+                    int value = valueOf(entry);
+                    int flag = flagOf(entry);
+                    if (flag == EXACT) {
+                        return value;
+                    } else if (flag == LOWER) {
+                        alpha = Math.max(alpha, value);
+                    } else {
+                        beta = Math.min(beta, value);
+                    }
+                    if (alpha >= beta) {
+                        return value;
+                    }
+                }
+            }
+
+            if (moveLists[ply] == null) {
+                moveLists[ply] = new int[board.lineCount()];
+            }
+            int[] moves = moveLists[ply];
+            int count = orderedMoves(moves, hashLine);
+            if (count == 0) {
+                return 0;
+            }
+
+            int originalAlpha = alpha;
+            int best = -INFINITY;
+            int bestLine = moves[0];
+            for (int i = 0; i < count; i++) {
+                int line = moves[i];
+                int completed = Integer.bitCount(board.drawLine(line));
+                long next = hash ^ search.keys[line];
+                int value;
+                if (completed > 0) {
+                    /* Extra turn: same player, window shifted by the boxes
+                       just taken. */
+                    value = completed + alphaBeta(next, depth - 1, ply + 1,
+                        alpha - completed, beta - completed);
+                } else {
+                    value = -alphaBeta(next, depth - 1, ply + 1,
+                                       -beta, -alpha);
+                }
+                board.eraseLine(line);
+                if (value > best) {
+                    best = value;
+                    bestLine = line;
+                }
+                if (value > alpha) {
+                    alpha = value;
+                }
+                if (alpha >= beta) {
+                    break;
+                }
+            }
+
+            int flag = (best <= originalAlpha) ? UPPER
+                     : (best >= beta) ? LOWER : EXACT;
+            store(hash, depth, flag, best, bestLine);
+            return best;
+        }
+
+        private int takeCaptures() {
+            /* Static value at the search horizon: the player to move takes
+               every box that is already one line from complete. */
+            int taken = 0;
+            int drawn = 0;
+            int line = board.nextFreeLine(0);
+            while (line >= 0) {
+                if (board.mostSidesNextTo(line) == 3) {
+                    taken += Integer.bitCount(board.drawLine(line));
+                    captures[drawn++] = line;
+                    line = board.nextFreeLine(0);
+                } else {
+                    line = board.nextFreeLine(line + 1);
+                }
+            }
+            while (drawn > 0) {
+                board.eraseLine(captures[--drawn]);
+            }
+            return taken;
+        }
+
+        int orderedMoves(int[] moves, int first) {
+            /* Free lines in search order: the remembered best move, then
+               lines that complete a box (and so keep the turn), then lines
+               that give nothing away, and last the ones that hand the
+               opponent a box. */
+            int count = 0;
+            int last = moves.length;
+            for (int line = board.nextFreeLine(0); line >= 0;
+                     line = board.nextFreeLine(line + 1)) {
+                int sides = board.mostSidesNextTo(line);
+                if (sides == 3) {
+                    moves[count++] = line;
+                } else if (sides == 2) {
+                    moves[--last] = line;
+                }
+            }
+            for (int line = board.nextFreeLine(0); line >= 0;
+                     line = board.nextFreeLine(line + 1)) {
+                if (board.mostSidesNextTo(line) < 2) {
+                    moves[count++] = line;
+                }
+            }
+            int sacrifices = moves.length - last;
+            System.arraycopy(moves, last, moves, count, sacrifices);
+            count += sacrifices;
+
+            for (int i = 1; first >= 0 && i < count; i++) {
+                if (moves[i] == first) {
+                    moves[i] = moves[0];
+                    moves[0] = first;
+                    break;
+                }
+            }
+            return count;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        /* Usage: java Engine [-grid length] [-think ms] [-threads n]
+                              [-table megabytes] [-games n]
+                              [-tablebase file]
+           Offline benchmark: the engine plays itself without a server and
+           reports the search speed and depth. */
+        int gridLength = 7;
+        long think = 1000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int tableMegabytes = 64;
+        int games = 1;
+        Tablebase tablebase = null;
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                System.out.println("Missing value for option: " + args[i]);
+                return;
+            }
+            if (args[i].equals("-tablebase")) {
+                tablebase = Tablebase.open(Paths.get(args[i+1]));
+                continue;
+            }
+            int value = Integer.parseInt(args[i+1]);
+            switch (args[i]) {
+                case "-grid":    gridLength = value; break;
+                case "-think":   think = value; break;
+                case "-threads": threads = value; break;
+                case "-table":   tableMegabytes = value; break;
+                case "-games":   games = value; break;
+                default:
+                    System.out.println("Unknown option: " + args[i]);
+                    return;
+            }
+        }
+        if (!Game.validGridLength(gridLength)) {
+            System.out.println("Grid length must be an odd number from 5 to "
+                             + Game.MAX_GRID_LENGTH);
+            return;
+        }
+
+        Engine engine = new Engine(threads, tableMegabytes, think,
+                                   tablebase);
+        long start = System.nanoTime();
+        for (int game = 1; game <= games; game++) {
+            Board board = new Board(gridLength);
+            int[] points = new int[2];
+            int player = 0;
+            int position;
+            while ((position = engine.bestMove(board)) >= 0) {
+                int completed = Integer.bitCount(board.play(position));
+                points[player] += completed;
+                if (completed == 0) {
+                    player = 1 - player;
+                }
+            }
+            System.out.println("Game " + game + ": Blue " + points[0]
+                             + ", Red " + points[1]);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long searches = engine.searches.sum();
+        System.out.printf("%d threads, %d moves in %.2f s, %.0f nodes/sec, "
+                        + "average depth %.1f%n", threads, searches, seconds,
+                          engine.nodes.sum() / seconds,
+                          (double) engine.depths.sum() / searches);
+        engine.pool.shutdown();
+    }
+}
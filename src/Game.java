@@ -0,0 +1,636 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Ray Santana
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.security.SecureRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+class Game {
+    /* This class handles the logic for each instance of the game that
+       is currently running on the server. Grid length can be any odd
+       number from 5 to MAX_GRID_LENGTH; it is chosen per game and sent
+       to both clients in the welcome message. Moves, quits, disconnects
+       and the lobby's timeouts are sent to the game's mailbox and run on
+       its worker thread, so the game's state and its players' outgoing
+       messages are only ever touched by that thread, without a lock.
+       Every turn has a deadline on a timing wheel shared by all games;
+       a player who misses it loses. A player who disconnects gets a
+       deadline on the same wheel for coming back, after which the game
+       is abandoned, so a game costs nothing while both players are
+       there. */
+    static final int DEFAULT_GRID_LENGTH = 7;
+    static final int MAX_GRID_LENGTH = 401;
+    private static final AtomicLong nextId = new AtomicLong(1);
+    private static final SecureRandom tokens = new SecureRandom();
+    private static final TimingWheel timers =
+        new TimingWheel(100, 512, "game-timer");
+    private static final Connection VACANT = new Connection() {
+        /* Stands in for a player who has not come back since a restart;
+           whatever is sent to it is dropped. */
+        public void welcome(char color, int gridLength) {}
+        public void session(long token) {}
+        public void information(String message) {}
+        public void moveValidated(boolean goAgain, int position) {}
+        public void opponentMoved(boolean goAgain, int position) {}
+        public void squareCompleted(char color, int position) {}
+        public void lineDrawn(char color, int position) {}
+        public void gameEnded(char winner) {}
+        public void flush() {}
+        public void close() {}
+        public boolean isOpen() {
+            return false;
+        }
+    };
+    private final Rules rules;
+    private final Journal journal;
+    private final Ratings ratings;
+    private final Broadcast broadcast = new Broadcast();
+    private final Announcer announcer = new Announcer();
+    private final Mailbox mailbox;
+    private final int turnTime; /* milliseconds, 0 for no limit */
+    private final int grace; /* milliseconds */
+    private TimingWheel.Timeout turnTimer;
+    private int turns = 0;
+    final long id;
+    private int sequence = 0;
+    private boolean started = false;
+    private volatile boolean finished = false;
+    private long startedAt;
+    Player currentPlayer;
+
+    public Game(int gridLength) {
+        this(gridLength, null, null, 0, 0);
+    }
+
+    public Game(int gridLength, Journal journal, Ratings ratings,
+                int turnTime, int grace) {
+        /* Games played with a journal record their moves in it, and with
+           ratings report their result. A turn may take up to turnTime
+           milliseconds, or forever for 0, and a player who disconnects
+           has grace milliseconds to come back. */
+        this(gridLength, journal, ratings, (journal == null)
+             ? nextId.getAndIncrement() : journal.newGameId(), turnTime,
+             grace);
+    }
+
+    private Game(int gridLength, Journal journal, Ratings ratings, long id,
+                 int turnTime, int grace) {
+        rules = new Rules(gridLength);
+        this.journal = journal;
+        this.ratings = ratings;
+        this.id = id;
+        this.turnTime = turnTime;
+        this.grace = grace;
+        mailbox = new Mailbox(id);
+    }
+
+    public static Game restore(int gridLength, Journal journal,
+                               Ratings ratings, long id, int turnTime,
+                               int grace) {
+        /* A game that was in progress when the server stopped. It counts
+           as started; its moves are put back with replay, and then its
+           seats with recovered. */
+        Game game = new Game(gridLength, journal, ratings, id, turnTime,
+                             grace);
+        game.started = true;
+        game.startedAt = System.nanoTime();
+        Metrics.SERVER.activeGames.increment();
+        return game;
+    }
+
+    public boolean replay(int position, char color, boolean goAgain) {
+        /* Apply a journaled move with the same rules as a live one, before
+           the game is handed to any players. The lines and squares go
+           into the spectators' history, which is also what a returning
+           player catches up from. Returns false if the rules do not allow
+           the move, or do not agree about the extra turn. */
+        if (!rules.play(color, position, history)
+         || (rules.turn() == color) != goAgain) {
+            return false;
+        }
+        ++sequence;
+        return true;
+    }
+
+    public void recovered(Player blue, Player red) {
+        /* Seat the players of a replayed game, both away since the
+           restart until they come back with their session tokens. A game
+           whose last move was replayed but not its end is ended now. */
+        blue.setOpponent(red);
+        red.setOpponent(blue);
+        currentPlayer = (rules.turn() == 'B') ? blue : red;
+        if (rules.isOver()) {
+            char winner = rules.winner();
+            mailbox.send(() -> {
+                broadcast.gameEnded(winner);
+                finish(winner);
+            });
+            return;
+        }
+        blue.away();
+        red.away();
+    }
+
+    Player[] seats() {
+        /* Both players, for a game that has started but that nobody has
+           been handed yet. */
+        return new Player[] {currentPlayer, currentPlayer.opponent};
+    }
+
+    public int gridLength() {
+        return rules.board.gridLength;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public CompletableFuture<Broadcast.Feed> watch(boolean binary) {
+        /* The spectator feed of this game in the given framing, once the
+           game's worker has got to the request. */
+        CompletableFuture<Broadcast.Feed> feed = new CompletableFuture<>();
+        mailbox.send(() -> feed.complete(broadcast.feed(binary)));
+        return feed;
+    }
+
+    public static boolean validGridLength(int length) {
+        return (length >= 5) && (length <= MAX_GRID_LENGTH)
+            && (length % 2 != 0);
+    }
+
+    public static String requestedName(String hello) {
+        /* Player name given in a "G length [name] [B]" hello, or null. */
+        if (hello != null && hello.startsWith("G ")) {
+            String[] fields = hello.trim().split(" +");
+            if (fields.length > 2 && Ratings.validName(fields[2])) {
+                return fields[2];
+            }
+        }
+        return null;
+    }
+
+    public static int requestedGridLength(String hello, int fallback) {
+        /* Grid length asked for in a client's G message, or the fallback
+           if the message is missing or the size is not supported. */
+        if (hello != null && hello.startsWith("G ")) {
+            try {
+                int length = Integer.parseInt(hello.split(" ")[1]);
+                if (validGridLength(length)) {
+                    return length;
+                }
+            } catch (NumberFormatException e) {}
+        }
+        return fallback;
+    }
+
+    public void start(Player first, Player second) {
+        mailbox.send(() -> begin(first, second));
+    }
+
+    void begin(Player first, Player second) {
+        /* Inform clients that both players have connected. The first
+           player goes first. */
+        started = true;
+        startedAt = System.nanoTime();
+        Metrics.SERVER.activeGames.increment();
+        if (journal != null) {
+            journal.started(id, gridLength());
+            journal.seated(id, first.playerColor, first.token, first.name,
+                           first.computer);
+            journal.seated(id, second.playerColor, second.token,
+                           second.name, second.computer);
+        }
+        first.setOpponent(second);
+        second.setOpponent(first);
+        currentPlayer = first;
+        first.connection.information("All players connected");
+        second.connection.information("All players connected");
+        first.connection.information("Your move");
+        first.connection.flush();
+        second.connection.flush();
+        startTurn();
+    }
+
+    private void startTurn() {
+        /* Give the player to move a fresh deadline. The timer only posts
+           to the mailbox; a deadline that a move beat to the mailbox
+           belongs to an earlier turn and is ignored. */
+        if (turnTimer != null) {
+            turnTimer.cancel();
+        }
+        if (turnTime > 0 && !finished) {
+            int turn = ++turns;
+            turnTimer = timers.schedule(turnTime,
+                () -> mailbox.send(() -> turnExpired(turn)));
+        }
+    }
+
+    private void turnExpired(int turn) {
+        /* A player who is away keeps their seat until the grace period
+           is over, and gets a fresh turn when they come back. */
+        if (turn == turns && !currentPlayer.gone) {
+            forfeit(currentPlayer, "Out of time, you lose",
+                    "Opponent ran out of time");
+        }
+    }
+
+    private void graceExpired(Player player, int absence) {
+        /* Abandon the game if the player is still gone since the
+           disconnect that set this deadline. */
+        if (player.gone && player.absences == absence) {
+            finish('A');
+        }
+    }
+
+    private void forfeit(Player loser, String lost, String won) {
+        /* End the game early with the loser's opponent as the winner. */
+        if (!started || finished) {
+            return;
+        }
+        char winner = loser.opponent.playerColor;
+        Metrics.SERVER.forfeits.increment();
+        printScore();
+        loser.connection.information(lost);
+        loser.opponent.connection.information(won);
+        loser.connection.gameEnded(winner);
+        loser.opponent.connection.gameEnded(winner);
+        loser.connection.flush();
+        loser.opponent.connection.flush();
+        broadcast.gameEnded(winner);
+        broadcast.publish();
+        finish(winner, true);
+    }
+
+    private void printScore() {
+        System.out.println("\n***Game Ended***");
+        System.out.println("Blue: " + rules.points('B') + " points");
+        System.out.println("Red: " + rules.points('R') + " points");
+        System.out.println("****************\n");
+    }
+
+    boolean legalMove(int position, Player player) {
+        /* Play the move if it is the player's turn and the line is free.
+           The rules report the move to the announcer, which queues the
+           messages for the players. */
+        if (player != currentPlayer
+         || !rules.play(player.playerColor, position, announcer)) {
+            return false;
+        }
+
+        /* Everything this move caused goes out in one write per player,
+           and in one batch for the spectators. */
+        player.connection.flush();
+        player.opponent.connection.flush();
+        broadcast.publish();
+        startTurn();
+        return true;
+    }
+
+    private final Rules.Listener history = new Rules.Listener() {
+        /* Records a replayed move for the spectators and nobody else. */
+        public void lineDrawn(char color, int position) {
+            broadcast.lineDrawn(color, position);
+        }
+
+        public void squareCompleted(char color, int position) {
+            broadcast.squareCompleted(color, position);
+        }
+
+        public void moveFinished(char color, int position,
+                                 boolean goAgain) {}
+
+        public void gameEnded(char winner) {}
+    };
+
+    private final class Announcer implements Rules.Listener {
+        /* Turns the events of a move into messages for the players and
+           spectators, and records the move in the journal. Called on the
+           game's worker, while currentPlayer is the mover. */
+        public void lineDrawn(char color, int position) {
+            broadcast.lineDrawn(color, position);
+        }
+
+        public void squareCompleted(char color, int position) {
+            currentPlayer.squareCompleted(position);
+        }
+
+        public void moveFinished(char color, int position,
+                                 boolean goAgain) {
+            if (journal != null) {
+                /* Only claims a slot and writes to memory; the journal
+                   syncs to disk on its own thread. */
+                journal.moved(id, ++sequence, position, color, goAgain);
+            }
+            /* An extra turn for completing a square; otherwise the
+               opponent plays next. */
+            currentPlayer.thisPlayerMoved(position, goAgain);
+            if (!goAgain) {
+                currentPlayer = currentPlayer.opponent;
+            }
+        }
+
+        public void gameEnded(char winner) {
+            printScore();
+            currentPlayer.connection.gameEnded(winner);
+            currentPlayer.opponent.connection.gameEnded(winner);
+            broadcast.gameEnded(winner);
+            finish(winner);
+        }
+    }
+
+    public void abandon() {
+        /* A player left; does nothing if the game is already over or was
+           never started. */
+        mailbox.send(() -> finish('A'));
+    }
+
+    private void finish(char result) {
+        finish(result, false);
+    }
+
+    private void finish(char result, boolean forfeited) {
+        /* Called on the game's worker, with the winner or A for an
+           abandoned game, and whether the loser forfeited. Only the
+           first call counts. */
+        if (!started || finished) {
+            return;
+        }
+        finished = true;
+        if (turnTimer != null) {
+            turnTimer.cancel();
+        }
+        if (journal != null) {
+            journal.ended(id, ++sequence, result, forfeited);
+        }
+        Metrics.SERVER.activeGames.decrement();
+        if (result != 'A') {
+            if (ratings != null) {
+                /* Only queued; the ratings are updated on their own
+                   thread. */
+                Player blue = (currentPlayer.playerColor == 'B')
+                            ? currentPlayer : currentPlayer.opponent;
+                ratings.record(blue.name, blue.opponent.name, result);
+            }
+            Metrics.SERVER.gamesFinished.increment();
+            Metrics.SERVER.gameDuration.record(
+                (System.nanoTime() - startedAt) / 1000000);
+        } else {
+            Metrics.SERVER.gamesAbandoned.increment();
+            broadcast.gameEnded('A');
+            broadcast.publish();
+            if (currentPlayer != null) {
+                /* Let whoever is still here go, and free their
+                   connection. */
+                currentPlayer.dismiss();
+                currentPlayer.opponent.dismiss();
+            }
+        }
+    }
+
+    class Player {
+        /* Each player sends and receives messages through its connection,
+           which may be a blocking socket or a selector-driven channel. */
+        private Connection connection;
+        private Player opponent;
+        private char playerColor;
+        private final String name; /* null for an unrated player */
+        private final boolean computer;
+        final long token;
+        /* Only touched by the game's worker: whether the player is away,
+           and how many times they have gone, which tells a grace deadline
+           for an earlier absence from the current one. */
+        private boolean gone = false;
+        private int absences = 0;
+        private TimingWheel.Timeout graceTimer;
+
+        public Player(Connection connection, char pColor) {
+            this(connection, pColor, null);
+        }
+
+        public Player(Connection connection, char pColor, String name) {
+            /* Send the welcome message and the session token to the
+               client. */
+            this.connection = connection;
+            this.playerColor = pColor;
+            this.name = name;
+            computer = connection instanceof ComputerPlayer;
+            token = tokens.nextLong();
+            connection.welcome(playerColor, gridLength());
+            connection.session(token);
+            connection.information("Waiting for opponent to connect...");
+            connection.flush();
+        }
+
+        Player(char pColor, long token, String name, boolean computer) {
+            /* A seat rebuilt from the journal, with nobody in it. */
+            this.connection = VACANT;
+            this.playerColor = pColor;
+            this.name = name;
+            this.computer = computer;
+            this.token = token;
+        }
+
+        Game game() {
+            return Game.this;
+        }
+
+        boolean isComputer() {
+            return computer;
+        }
+
+        private void dismiss() {
+            if (!gone) {
+                connection.gameEnded('A');
+                connection.flush();
+                connection.close();
+            }
+        }
+
+        public void resume(Connection returning, int movesSeen) {
+            /* Seat a returning player on a new connection and send them
+               what they missed, or send them away if the game is over by
+               then. The old connection is closed; if it only notices now,
+               its disconnect is ignored because it is no longer the
+               seat's. */
+            mailbox.send(() -> {
+                if (finished) {
+                    returning.information("Game not found");
+                    returning.flush();
+                    returning.close();
+                    return;
+                }
+                Connection old = connection;
+                connection = returning;
+                gone = false;
+                if (graceTimer != null) {
+                    graceTimer.cancel();
+                }
+                Metrics.SERVER.reconnects.increment();
+                returning.welcome(playerColor, gridLength());
+                returning.session(token);
+                broadcast.replay(movesSeen, returning);
+                returning.information((currentPlayer == this)
+                    ? "Your move" : "Opponent's turn, please wait");
+                if (opponent.gone) {
+                    returning.information(
+                        "Opponent disconnected, waiting for them to return");
+                }
+                returning.flush();
+                opponent.connection.information("Opponent is back");
+                opponent.connection.flush();
+                old.close();
+                if (currentPlayer == this) {
+                    startTurn();
+                }
+            });
+        }
+
+        public void setOpponent(Player opponent) {
+            this.opponent = opponent;
+        }
+
+        public void thisPlayerMoved(int position, boolean goAgain) {
+            /* Notify clients if the current player has made a valid move, and
+               if they get an extra turn. */
+            connection.moveValidated(goAgain, position);
+            opponent.connection.opponentMoved(goAgain, position);
+        }
+
+        public void squareCompleted(int position) {
+            /* Notify clients the position and color associated with a
+               completed grid square. */
+            connection.squareCompleted(playerColor, position);
+            opponent.connection.squareCompleted(playerColor, position);
+            broadcast.squareCompleted(playerColor, position);
+        }
+
+        public boolean handleCommand(String command) {
+            /* Process one line received from the client. Returns false once
+               the player has quit and the connection should be closed. */
+            command = command.isEmpty() ? " " : command;
+            if (command.charAt(0) == 'M') {
+                return move(Integer.parseInt(command.substring(2)));
+            } else if (command.charAt(0) == 'Q') {
+                return quit(command.charAt(2));
+            }
+            return true;
+        }
+
+        public boolean handleFrame(byte[] frame, int from, int to) {
+            /* Process the events of one binary frame from the client,
+               which lie between from and to. A frame that ends partway
+               through an event is rejected rather than read past. */
+            int i = from;
+            while (i < to) {
+                char type = (char) frame[i++];
+                if (type == 'M') {
+                    need(i + 4, to, type);
+                    move(Protocol.getInt(frame, i));
+                    i += 4;
+                } else if (type == 'Q') {
+                    need(i + 1, to, type);
+                    if (!quit((char) frame[i++])) {
+                        return false;
+                    }
+                } else {
+                    throw new IllegalArgumentException(
+                        "Unknown command type " + (int) type);
+                }
+            }
+            return true;
+        }
+
+        private void need(int end, int to, char type) {
+            if (end > to) {
+                throw new IllegalArgumentException(
+                    "Truncated command type " + type);
+            }
+        }
+
+        public boolean move(int position) {
+            /* Hand the move to the game; the game announces the winner
+               after the last move. */
+            long received = System.nanoTime();
+            mailbox.send(() -> play(position, received));
+            return true;
+        }
+
+        private void play(int position, long received) {
+            /* On the game's worker. The latency counts the time the move
+               waited in the mailbox. */
+            Metrics.SERVER.mailboxWait.record(System.nanoTime() - received);
+            if (legalMove(position, this)) {
+                Metrics.SERVER.moves.increment();
+            } else {
+                Metrics.SERVER.invalidMoves.increment();
+                connection.information("Invalid move");
+                connection.flush();
+            }
+            Metrics.SERVER.moveLatency.record(System.nanoTime() - received);
+        }
+
+        public boolean quit(char color) {
+            /* Player has quit the game. */
+            if (color != playerColor) {
+                return true;
+            }
+            abandon();
+            return false;
+        }
+
+        public void forfeit() {
+            /* The player has fallen too far behind to keep playing. */
+            mailbox.send(() -> Game.this.forfeit(this,
+                "Too far behind, you lose", "Opponent could not keep up"));
+        }
+
+        private void away() {
+            /* Hold the seat for the grace period. */
+            int absence = ++absences;
+            gone = true;
+            graceTimer = timers.schedule(grace,
+                () -> mailbox.send(() -> graceExpired(this, absence)));
+        }
+
+        public void disconnected(Connection lost) {
+            /* The seat is held for the player to come back, until the
+               grace period is over. Nothing happens if the player has
+               already come back on another connection, or the game is
+               over or has not started. */
+            System.out.println("Player disconnected :(");
+            Metrics.SERVER.disconnects.increment();
+            mailbox.send(() -> {
+                if (lost != connection || !started || finished) {
+                    return;
+                }
+                away();
+                opponent.connection.information(
+                    "Opponent disconnected, waiting for them to return");
+                opponent.connection.flush();
+            });
+        }
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Ray Santana
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+class Journal {
+    /* Append-only record of every game's moves, kept in a directory of
+       fixed-size segment files that are memory-mapped for writing. A
+       writer claims the next record slot with one atomic add and writes
+       the record straight into the mapping, so appending is lock-free and
+       never waits on the disk. A background thread forces the mapped
+       segments to disk every FLUSH_INTERVAL, which batches many records
+       into each sync; a crash can lose at most that much.
+
+       Every record is RECORD_SIZE bytes:
+
+         0  game id (64-bit)
+         8  sequence number within the game; for P the high half of the
+            session token, for N the offset of the characters (32-bit)
+         12 value: grid length for G, position for M, the low half of
+            the session token for P, four characters of the name for N
+            (32-bit)
+         16 type: G (game started), P (player seated), N (part of a
+            player's name), M (move) or E (game ended)
+         17 color: B or R for G, P, N and M, winner B, R, T or A
+            (abandoned) for E
+         18 for M, 1 if the move earned an extra turn; for E, 1 if the
+            loser forfeited (ran out of time or could not keep up); for
+            P, 1 if the seat is the computer's
+         24 checksum of the bytes above, never 0 (64-bit)
+
+       The checksum is written last, so a record that was cut short by a
+       crash is recognised and skipped. Each server run starts a new
+       segment, so files are never written by two runs. */
+    static final int RECORD_SIZE = 32;
+    static final int SEGMENT_SIZE = 16 << 20;
+    static final byte STARTED = 'G';
+    static final byte SEATED = 'P';
+    static final byte NAMED = 'N';
+    static final byte MOVED = 'M';
+    static final byte ENDED = 'E';
+    private static final int FLUSH_INTERVAL = 100; /* milliseconds */
+    private static final String PREFIX = "moves-";
+    private static final String SUFFIX = ".journal";
+
+    private final Path directory;
+    private final int firstSegment;
+    private final AtomicLong end = new AtomicLong();
+    private final AtomicLong nextGameId;
+    private final ConcurrentHashMap<Integer, MappedByteBuffer> segments =
+        new ConcurrentHashMap<>();
+    private final Map<Long, Unfinished> unfinished = new LinkedHashMap<>();
+
+    interface Visitor {
+        /* Receives the valid records of a journal in the order they were
+           written. */
+        void record(byte type, long game, int sequence, int value,
+                    char color, boolean goAgain);
+    }
+
+    public Journal(Path directory) throws IOException {
+        /* Read what earlier runs left behind, then start a new segment
+           after the last one. */
+        this.directory = directory;
+        Files.createDirectories(directory);
+        List<Path> existing = segmentFiles(directory);
+        firstSegment = existing.isEmpty() ? 0
+                     : segmentNumber(existing.get(existing.size() - 1)) + 1;
+        long[] lastGame = {0};
+        scan(directory, (type, game, sequence, value, color, goAgain) -> {
+            lastGame[0] = Math.max(lastGame[0], game);
+            if (type == STARTED) {
+                unfinished.put(game, new Unfinished(value));
+            } else if (type == ENDED) {
+                unfinished.remove(game);
+            } else if (unfinished.containsKey(game)) {
+                unfinished.get(game).record(type, sequence, value, color,
+                                            goAgain);
+            }
+        });
+        nextGameId = new AtomicLong(lastGame[0] + 1);
+        segment(0);
+        ScheduledExecutorService flusher =
+            Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "journal");
+                thread.setDaemon(true);
+                return thread;
+            });
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL,
+                                       FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public long newGameId() {
+        return nextGameId.getAndIncrement();
+    }
+
+    public void started(long game, int gridLength) {
+        append(STARTED, game, 0, gridLength, 'B', false);
+    }
+
+    public void seated(long game, char color, long token, String name,
+                       boolean computer) {
+        /* Record a player's session token and name, so the seat can be
+           taken back after a restart. */
+        append(SEATED, game, (int) (token >>> 32), (int) token, color,
+               computer);
+        if (name != null) {
+            for (int offset = 0; offset < name.length(); offset += 4) {
+                int chars = 0;
+                for (int i = 0; i < 4; i++) {
+                    chars = chars << 8 | ((offset + i < name.length())
+                                          ? name.charAt(offset + i) : 0);
+                }
+                append(NAMED, game, offset, chars, color, false);
+            }
+        }
+    }
+
+    public void moved(long game, int sequence, int position, char color,
+                      boolean goAgain) {
+        append(MOVED, game, sequence, position, color, goAgain);
+    }
+
+    public void ended(long game, int sequence, char result,
+                      boolean forfeited) {
+        append(ENDED, game, sequence, 0, result, forfeited);
+    }
+
+    public List<Game> recover(Ratings ratings, int turnTime, int grace) {
+        /* Rebuild the games that were still being played when the last
+           run stopped, with their players' seats waiting for them to come
+           back; the games get the same settings as new ones. A game
+           missing a seat or one of its moves, or with a move the rules do
+           not allow, cannot be rebuilt and is closed as abandoned. */
+        List<Game> games = new ArrayList<>();
+        for (Map.Entry<Long, Unfinished> entry : unfinished.entrySet()) {
+            Unfinished record = entry.getValue();
+            Game game = Game.restore(record.gridLength, this, ratings,
+                                     entry.getKey(), turnTime, grace);
+            if (!record.restore(game)) {
+                System.out.println("Game " + entry.getKey()
+                                 + " cannot be resumed and was abandoned");
+                game.abandon();
+                continue;
+            }
+            games.add(game);
+        }
+        unfinished.clear();
+        return games;
+    }
+
+    private void append(byte type, long game, int sequence, int value,
+                        char color, boolean goAgain) {
+        /* Records never straddle segments, because the segment size is a
+           multiple of the record size. */
+        long offset = end.getAndAdd(RECORD_SIZE);
+        MappedByteBuffer segment = segment((int) (offset / SEGMENT_SIZE));
+        int at = (int) (offset % SEGMENT_SIZE);
+        segment.putLong(at, game);
+        segment.putInt(at + 8, sequence);
+        segment.putInt(at + 12, value);
+        segment.put(at + 16, type);
+        segment.put(at + 17, (byte) color);
+        segment.put(at + 18, (byte) (goAgain ? 1 : 0));
+        segment.putLong(at + 24, checksum(game, sequence, value, type,
+                                          (byte) color, goAgain));
+    }
+
+    private MappedByteBuffer segment(int index) {
+        /* The first segment is mapped when the journal opens and each
+           later one by the journal thread while its predecessor fills, so
+           a writer only finds one missing if it outruns that thread by
+           half a segment, and then maps it itself. */
+        return segments.computeIfAbsent(index, i -> {
+            Path file = directory.resolve(segmentName(firstSegment + i));
+            try (FileChannel channel = FileChannel.open(file,
+                     StandardOpenOption.CREATE, StandardOpenOption.READ,
+                     StandardOpenOption.WRITE)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                                   SEGMENT_SIZE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private void flush() {
+        /* Runs on the journal thread. Segments behind the current one are
+           full, so they are dropped after their last sync; the current
+           segment's successor is mapped ahead of time once it is half
+           full, so writers never wait for a file to be created. */
+        try {
+            long offset = end.get();
+            int current = (int) (offset / SEGMENT_SIZE);
+            for (Map.Entry<Integer, MappedByteBuffer> entry
+                     : segments.entrySet()) {
+                entry.getValue().force();
+                if (entry.getKey() < current - 1) {
+                    segments.remove(entry.getKey());
+                }
+            }
+            if (offset % SEGMENT_SIZE > SEGMENT_SIZE / 2) {
+                segment(current + 1);
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    static void scan(Path directory, Visitor visitor) throws IOException {
+        /* Visit every valid record in the directory, segment by segment.
+           Each segment is mapped read-only, so nothing is copied onto the
+           heap. Unused and torn slots are skipped. */
+        for (Path file : segmentFiles(directory)) {
+            try (FileChannel channel = FileChannel.open(file,
+                     StandardOpenOption.READ)) {
+                MappedByteBuffer segment = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                scan(segment, 0, segment.capacity(), visitor);
+            }
+        }
+    }
+
+    static void scan(ByteBuffer segment, int from, int to, Visitor visitor) {
+        /* Visit the valid records between two record boundaries of a
+           mapped segment. */
+        int limit = Math.min(to, segment.capacity()) - RECORD_SIZE;
+        for (int at = from; at <= limit; at += RECORD_SIZE) {
+            long game = segment.getLong(at);
+            int sequence = segment.getInt(at + 8);
+            int value = segment.getInt(at + 12);
+            byte type = segment.get(at + 16);
+            byte color = segment.get(at + 17);
+            boolean goAgain = segment.get(at + 18) != 0;
+            if (type != 0 && segment.getLong(at + 24) == checksum(
+                    game, sequence, value, type, color, goAgain)) {
+                visitor.record(type, game, sequence, value,
+                               (char) color, goAgain);
+            }
+        }
+    }
+
+    static List<Path> segmentFiles(Path directory) throws IOException {
+        /* Segment files in the order they were written. */
+        if (!Files.isDirectory(directory)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> {
+                              String name = file.getFileName().toString();
+                              return name.startsWith(PREFIX)
+                                  && name.endsWith(SUFFIX);
+                          })
+                        .sorted()
+                        .collect(Collectors.toList());
+        }
+    }
+
+    private static int segmentNumber(Path file) {
+        String name = file.getFileName().toString();
+        return Integer.parseInt(name.substring(PREFIX.length(),
+                                    name.length() - SUFFIX.length()));
+    }
+
+    private static String segmentName(int number) {
+        return String.format("%s%08d%s", PREFIX, number, SUFFIX);
+    }
+
+    private static long checksum(long game, int sequence, int value,
+                                 byte type, byte color, boolean goAgain) {
+        /* A 64-bit mix of every field; bit 0 is forced on so an empty
+           slot can never pass. */
+        long hash = game * 0x9E3779B97F4A7C15L;
+        hash ^= (((long) sequence << 32) | (value & 0xffffffffL))
+              * 0xC2B2AE3D27D4EB4FL;
+        hash ^= ((type & 0xff) | (color & 0xff) << 8 | (goAgain ? 1 << 16 : 0))
+              * 0x165667B19E3779F9L;
+        hash ^= hash >>> 29;
+        hash *= 0xBF58476D1CE4E5B9L;
+        hash ^= hash >>> 32;
+        return hash | 1;
+    }
+
+    private static final class Unfinished {
+        /* The seats and moves of a game that had not ended, with the
+           moves keyed by sequence number so they can be replayed in
+           order. Seats are indexed blue then red. */
+        final int gridLength;
+        final Map<Integer, int[]> moves = new HashMap<>();
+        final long[] tokens = new long[2];
+        final boolean[] seated = new boolean[2];
+        final boolean[] computer = new boolean[2];
+        final StringBuilder[] names = new StringBuilder[2];
+
+        Unfinished(int gridLength) {
+            this.gridLength = gridLength;
+        }
+
+        void record(byte type, int sequence, int value, char color,
+                    boolean flag) {
+            int seat = (color == 'B') ? 0 : 1;
+            if (type == SEATED) {
+                tokens[seat] = (long) sequence << 32
+                             | (value & 0xffffffffL);
+                seated[seat] = true;
+                computer[seat] = flag;
+            } else if (type == NAMED) {
+                named(seat, sequence, value);
+            } else if (type == MOVED) {
+                moves.put(sequence,
+                          new int[] {value, color, flag ? 1 : 0});
+            }
+        }
+
+        private void named(int seat, int offset, int chars) {
+            /* Four characters of a name from offset on, first in the
+               high byte; unused ones are 0. */
+            if (names[seat] == null) {
+                names[seat] = new StringBuilder();
+            }
+            StringBuilder name = names[seat];
+            for (int i = 0; i < 4; i++) {
+                char c = (char) ((chars >>> (24 - 8 * i)) & 0xff);
+                if (c == 0 || offset + i >= 20) {
+                    break;
+                }
+                if (name.length() <= offset + i) {
+                    name.setLength(offset + i + 1);
+                }
+                name.setCharAt(offset + i, c);
+            }
+        }
+
+        private String name(int seat) {
+            /* The seat's name, or null if it had none or it was not
+               recorded whole. */
+            String name = (names[seat] == null) ? null
+                        : names[seat].toString();
+            return (name != null && Ratings.validName(name)) ? name : null;
+        }
+
+        boolean restore(Game game) {
+            if (!seated[0] || !seated[1]) {
+                return false;
+            }
+            for (int sequence = 1; sequence <= moves.size(); sequence++) {
+                int[] move = moves.get(sequence);
+                if (move == null) {
+                    return false;
+                }
+                if (!game.replay(move[0], (char) move[1], move[2] != 0)) {
+                    return false;
+                }
+            }
+            game.recovered(
+                game.new Player('B', tokens[0], name(0), computer[0]),
+                game.new Player('R', tokens[1], name(1), computer[1]));
+            return true;
+        }
+    }
+}
@@ -0,0 +1,451 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Ray Santana
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class LoadClient {
+    /* Headless load generator. Every bot is a separate connection that
+       plays complete games against another bot through a running server,
+       decoding messages with the same code as the Swing client. When all
+       bots are done, the run is summarised as throughput, move round
+       trip latency (from sending M to receiving the matching V) and turn
+       latency (from sending the move that ends a turn to receiving the
+       opponent's move that hands it back, which covers the relay to the
+       opponent and its reply). With
+       multiplexing, each connection instead carries several bots' games
+       at once, so the server sees many games over few sockets. */
+    private static final int PORT = 8901;
+    private final String host;
+    private final int gridLength;
+    private final int gamesPerBot;
+    private final long moveInterval; /* nanoseconds, 0 for no limit */
+    private final int[] script;
+    private final boolean binary;
+    private final int multiplex; /* games per connection, 0 for one */
+    private final Histogram latency = new Histogram();
+    private final Histogram turnLatency = new Histogram();
+    private final LongAdder games = new LongAdder();
+    private final LongAdder moves = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final AtomicLong seatsLeft = new AtomicLong();
+
+    public LoadClient(String host, int gridLength, int gamesPerBot,
+                      double movesPerSecond, int[] script, boolean binary,
+                      int multiplex) {
+        this.host = host;
+        this.gridLength = gridLength;
+        this.gamesPerBot = gamesPerBot;
+        this.moveInterval = (movesPerSecond > 0)
+                          ? (long) (1e9 / movesPerSecond) : 0;
+        this.script = script;
+        this.binary = binary;
+        this.multiplex = multiplex;
+    }
+
+    public static void main(String[] args) throws Exception {
+        /* Usage: java LoadClient [-host address] [-connections n]
+                      [-games n] [-rate moves/sec] [-grid length]
+                      [-script file] [-framing text|binary]
+                      [-multiplex games]
+           Connections are paired into games by the server, so an even
+           number is used. Games is the number each connection plays one
+           after the other on average; the server pairs whoever is free,
+           so the seats are shared out as bots finish games rather than
+           fixed per bot, and nobody is left without an opponent at the
+           end. Rate limits each connection's moves. A
+           script file lists positions that bots try in order before
+           falling back to random legal moves. Framing selects the wire
+           format the bots ask the server for. Every bot plays under its
+           own name, bot-0, bot-1 and so on, so a server with ratings
+           rates them. With -multiplex, every connection plays that many
+           games at the same time over the one socket, each seat playing
+           its share of games back to back, and the bots are named
+           bot-0-0, bot-0-1 and so on; the rate is then shared by all the
+           games of a connection. */
+        String host = "localhost";
+        int connections = 2;
+        int games = 10;
+        double rate = 0;
+        int gridLength = 7;
+        int[] script = new int[0];
+        boolean binary = false;
+        int multiplex = 0;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i+1];
+            switch (args[i]) {
+                case "-host":        host = value; break;
+                case "-connections": connections = Integer.parseInt(value);
+                                     break;
+                case "-games":       games = Integer.parseInt(value); break;
+                case "-rate":        rate = Double.parseDouble(value); break;
+                case "-grid":        gridLength = Integer.parseInt(value);
+                                     break;
+                case "-script":
+                    String text = new String(Files.readAllBytes(
+                                      Paths.get(value))).trim();
+                    script = text.isEmpty() ? new int[0]
+                           : Arrays.stream(text.split("\\s+"))
+                                   .mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "-framing":     binary = value.equals("binary"); break;
+                case "-multiplex":   multiplex = Integer.parseInt(value);
+                                     break;
+                default:
+                    System.out.println("Unknown option: " + args[i]);
+                    return;
+            }
+        }
+        if (connections * Math.max(multiplex, 1) % 2 != 0) {
+            ++connections;
+            System.out.println("Using " + connections
+                             + " connections so every bot has an opponent");
+        }
+
+        new LoadClient(host, gridLength, games, rate, script, binary,
+                       multiplex).run(connections);
+    }
+
+    public void run(int connections) throws InterruptedException {
+        Thread[] bots = new Thread[connections];
+        seatsLeft.set((long) connections * Math.max(multiplex, 1)
+                      * gamesPerBot);
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            bots[i] = new Thread((multiplex > 0) ? new Multiplexed(i)
+                                                 : new Bot(i, "bot-" + i,
+                                                           new Pace()),
+                                 "bot-" + i);
+            bots[i].start();
+        }
+        for (Thread bot : bots) {
+            bot.join();
+        }
+        report((System.nanoTime() - start) / 1e9);
+    }
+
+    private void report(double seconds) {
+        long gameCount = games.sum();
+        long moveCount = moves.sum();
+        System.out.printf("Games: %d in %.2f s (%.1f games/sec)%n",
+                          gameCount, seconds, gameCount / seconds);
+        System.out.printf("Moves: %d (%.1f moves/sec)%n",
+                          moveCount, moveCount / seconds);
+        System.out.printf("Move round trip (us): p50 %.1f, p99 %.1f, "
+                        + "p99.9 %.1f, max %.1f%n",
+                          latency.percentile(50) / 1e3,
+                          latency.percentile(99) / 1e3,
+                          latency.percentile(99.9) / 1e3,
+                          latency.max() / 1e3);
+        System.out.printf("Turn round trip (us): p50 %.1f, p99 %.1f, "
+                        + "p99.9 %.1f, max %.1f%n",
+                          turnLatency.percentile(50) / 1e3,
+                          turnLatency.percentile(99) / 1e3,
+                          turnLatency.percentile(99.9) / 1e3,
+                          turnLatency.max() / 1e3);
+        System.out.println("Errors: " + errors.sum()
+                         + ", disconnects: " + disconnects.sum());
+    }
+
+    private class Bot implements Runnable, MessageListener {
+        /* One connection playing games back to back. The bot keeps the
+           unplayed lines in an array so picking and removing a random line
+           are both constant time. */
+        private final Random random;
+        private final String name;
+        private final Pace pace;
+        private OutputStream output;
+        private int channel = -1;
+        private char color;
+        private boolean framed;
+        private int[] free;
+        private int[] slot;
+        private int freeCount;
+        private int scriptIndex;
+        private int lastMove;
+        private long sentAt;
+        private long handedAt; /* when the turn went over, 0 if it has not */
+
+        Bot(int seed, String name, Pace pace) {
+            random = new Random(seed);
+            this.name = name;
+            this.pace = pace;
+        }
+
+        @Override
+        public void run() {
+            while (seatsLeft.getAndDecrement() > 0) {
+                try (Socket socket = new Socket(host, PORT)) {
+                    socket.setTcpNoDelay(true);
+                    DataInputStream input = new DataInputStream(
+                        new BufferedInputStream(socket.getInputStream()));
+                    output = socket.getOutputStream();
+                    output.write(("G " + gridLength + " " + name
+                                  + (binary ? " B\n" : "\n"))
+                                 .getBytes(StandardCharsets.US_ASCII));
+                    Client.readMessages(input, this);
+                    Protocol.writeQuit(output, framed, color);
+                } catch (EOFException | UncheckedIOException e) {
+                    disconnects.increment();
+                } catch (IOException e) {
+                    /* Refused connections are errors; anything that goes
+                       wrong mid-game is counted as a disconnect. */
+                    if (output == null) {
+                        errors.increment();
+                    } else {
+                        disconnects.increment();
+                    }
+                } catch (RuntimeException e) {
+                    errors.increment();
+                }
+                output = null;
+            }
+        }
+
+        public void welcome(char playerColor, int length, boolean binary) {
+            /* The server may not support binary framing; use whatever it
+               confirmed. */
+            color = playerColor;
+            framed = binary;
+            free = new int[length * length / 2];
+            slot = new int[length * length];
+            freeCount = 0;
+            scriptIndex = 0;
+            handedAt = 0;
+            Arrays.fill(slot, -1);
+            for (int position = 1; position < slot.length; position += 2) {
+                slot[position] = freeCount;
+                free[freeCount++] = position;
+            }
+        }
+
+        public void information(String message) {
+            if (message.equals("Your move")) {
+                move();
+            } else if (message.equals("Invalid move")) {
+                errors.increment();
+                take(lastMove);
+                move();
+            }
+        }
+
+        public void moveValidated(boolean goAgain, int position) {
+            latency.record(System.nanoTime() - sentAt);
+            moves.increment();
+            take(position);
+            if (goAgain) {
+                move();
+            } else {
+                handedAt = sentAt;
+            }
+        }
+
+        public void opponentMoved(boolean goAgain, int position) {
+            take(position);
+            if (!goAgain) {
+                if (handedAt != 0) {
+                    turnLatency.record(System.nanoTime() - handedAt);
+                    handedAt = 0;
+                }
+                move();
+            }
+        }
+
+        public void squareCompleted(char playerColor, int position) {}
+
+        public void lineDrawn(char playerColor, int position) {}
+
+        public void session(long token) {}
+
+        public void gameEnded(char winner) {
+            /* Both bots see the end of a game; count it once. */
+            if (color == 'B') {
+                games.increment();
+            }
+        }
+
+        private void take(int position) {
+            int index = slot[position];
+            if (index >= 0) {
+                int last = free[--freeCount];
+                free[index] = last;
+                slot[last] = index;
+                slot[position] = -1;
+            }
+        }
+
+        private void move() {
+            if (freeCount == 0) {
+                return;
+            }
+            pace.await();
+
+            int position = -1;
+            while (scriptIndex < script.length && position < 0) {
+                int scripted = script[scriptIndex++];
+                if (scripted >= 0 && scripted < slot.length
+                 && slot[scripted] >= 0) {
+                    position = scripted;
+                }
+            }
+            if (position < 0) {
+                position = free[random.nextInt(freeCount)];
+            }
+            lastMove = position;
+            sentAt = System.nanoTime();
+            try {
+                Protocol.writeMove(output, framed, channel, position);
+            } catch (IOException e) {
+                /* Moves are sent from inside the message callbacks. */
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private class Multiplexed implements Runnable {
+        /* One connection playing several games at once. Each seat is a
+           bot that opens its games on a fresh channel, so a late message
+           for a finished game is never taken for the next one; a seat
+           starts another game as soon as its last one ends. Everything
+           is read and sent from the connection's own thread. */
+        private final int id;
+        private final Map<Integer, Bot> channels = new HashMap<>();
+        private final Pace pace = new Pace();
+        private OutputStream output;
+        private boolean framed;
+        private int nextChannel = 0;
+
+        Multiplexed(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public void run() {
+            try (Socket socket = new Socket(host, PORT)) {
+                socket.setTcpNoDelay(true);
+                DataInputStream input = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+                output = socket.getOutputStream();
+                output.write((binary ? "X B\n" : "X\n")
+                             .getBytes(StandardCharsets.US_ASCII));
+                String confirmed = Protocol.readLine(input);
+                if (confirmed == null || !confirmed.startsWith("W X")) {
+                    throw new IOException("Multiplexing refused");
+                }
+                framed = confirmed.endsWith(" B");
+                for (int i = 0; i < multiplex; i++) {
+                    open(new Bot(id * multiplex + i, "bot-" + id + "-" + i,
+                                 pace));
+                }
+                byte[] frame = new byte[Protocol.MAX_FRAME];
+                while (!channels.isEmpty()) {
+                    if (framed) {
+                        int length = input.readUnsignedShort();
+                        input.readFully(frame, 0, length);
+                        Bot bot = channels.get(Protocol.getInt(frame, 0));
+                        if (bot != null && Protocol.decodeFrame(frame, 4,
+                                                          length, bot)) {
+                            finished(bot);
+                        }
+                    } else {
+                        String line = Protocol.readLine(input);
+                        if (line == null) {
+                            throw new EOFException(
+                                "Server closed the connection");
+                        }
+                        int space = line.indexOf(' ');
+                        Bot bot = (line.startsWith("#") && space > 0)
+                            ? channels.get(Integer.parseInt(
+                                  line.substring(1, space)))
+                            : null;
+                        if (bot != null && Client.readMessage(
+                                line.substring(space + 1), bot)) {
+                            finished(bot);
+                        }
+                    }
+                }
+            } catch (EOFException | UncheckedIOException e) {
+                disconnects.increment();
+            } catch (IOException e) {
+                if (output == null) {
+                    errors.increment();
+                } else {
+                    disconnects.increment();
+                }
+            } catch (RuntimeException e) {
+                errors.increment();
+            }
+        }
+
+        private void open(Bot bot) throws IOException {
+            if (seatsLeft.getAndDecrement() <= 0) {
+                return;
+            }
+            bot.output = output;
+            bot.channel = nextChannel++;
+            channels.put(bot.channel, bot);
+            Protocol.writeHello(output, framed, bot.channel,
+                                "G " + gridLength + " " + bot.name);
+        }
+
+        private void finished(Bot bot) throws IOException {
+            Protocol.writeQuit(output, framed, bot.channel, bot.color);
+            channels.remove(bot.channel);
+            open(bot);
+        }
+    }
+
+    private class Pace {
+        /* Spaces out the moves sent over one connection. */
+        private long nextMove;
+
+        void await() {
+            if (moveInterval > 0) {
+                long now = System.nanoTime();
+                if (nextMove > now) {
+                    LockSupport.parkNanos(nextMove - now);
+                }
+                nextMove = Math.max(now, nextMove) + moveInterval;
+            }
+        }
+    }
+}
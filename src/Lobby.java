@@ -0,0 +1,254 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Ray Santana
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+class Lobby {
+    /* Matches players into games for both servers, on whichever thread
+       finished the player's handshake. Each grid size has one waiting slot
+       that is taken and filled with compare-and-set, so connection threads
+       pair up without sharing a lock, and two players arriving together
+       can never both end up waiting. An arriving player takes the waiter
+       if it is still connected, or starts a new game and waits. A sweep a
+       few times a second clears waiters who disconnected and hands those
+       who waited too long to the computer, or sends them away. Games in
+       progress are also listed here for spectators, until the sweep sees
+       them end, along with their players' session tokens. */
+    private static final int SWEEP_INTERVAL = 100; /* milliseconds */
+    private final int gridLength;
+    private final Engine computer;
+    private final int computerWait;
+    private final int maxWait;
+    private final int grace; /* for the games, which keep the time */
+    private final int turnTime;
+    private final Journal journal;
+    private final Ratings ratings;
+    private final ConcurrentHashMap<Integer, AtomicReference<Waiter>> slots =
+        new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Game> games =
+        new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Game.Player> sessions =
+        new ConcurrentHashMap<>();
+    private volatile Game newest;
+    private final ScheduledExecutorService sweeper =
+        Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "lobby");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    public Lobby(int gridLength, Engine computer, int computerWait,
+                 int maxWait, int grace, int turnTime, Journal journal,
+                 Ratings ratings) {
+        /* Waits are in milliseconds; the computer only plays if an engine
+           is given, and a maximum wait of 0 lets players wait forever.
+           New games get turnTime for each turn, are recorded in the
+           journal and report their results to the ratings, if there are
+           any. */
+        this.gridLength = gridLength;
+        this.computer = computer;
+        this.computerWait = computerWait;
+        this.maxWait = maxWait;
+        this.grace = grace;
+        this.turnTime = turnTime;
+        this.journal = journal;
+        this.ratings = ratings;
+        sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL,
+                                       SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public Game.Player join(Connection connection, String hello) {
+        /* Seat a player who has finished the handshake and return their
+           seat. The first player of a game picks its grid size and plays
+           blue. The slot is claimed before anyone is welcomed, so a
+           player's color is never sent until it is certain. */
+        int length = Game.requestedGridLength(hello, gridLength);
+        AtomicReference<Waiter> slot = slots.computeIfAbsent(length,
+                                           size -> new AtomicReference<>());
+        Game game = null;
+        while (true) {
+            Waiter waiting = slot.get();
+            if (waiting != null) {
+                if (slot.compareAndSet(waiting, null)
+                 && waiting.connection.isOpen()) {
+                    Game.Player red = waiting.game.new Player(connection,
+                                          'R', Game.requestedName(hello));
+                    if (waiting.seatRed(red)) {
+                        started(waiting);
+                    }
+                    return red;
+                }
+            } else {
+                if (game == null) {
+                    game = new Game(length, journal, ratings, turnTime,
+                                    grace);
+                }
+                Waiter waiter = new Waiter(game, connection);
+                if (slot.compareAndSet(null, waiter)) {
+                    Game.Player blue = game.new Player(connection, 'B',
+                                           Game.requestedName(hello));
+                    if (waiter.seatBlue(blue)) {
+                        started(waiter);
+                    }
+                    return blue;
+                }
+            }
+        }
+    }
+
+    public void restore(Game game) {
+        /* List a game rebuilt from the journal, whose players take their
+           seats back like after any disconnect. The computer takes its
+           seat back at once if this lobby has one. */
+        games.put(game.id, game);
+        for (Game.Player player : game.seats()) {
+            sessions.put(player.token, player);
+            if (player.isComputer() && computer != null) {
+                ComputerPlayer.rejoin(player, computer);
+            }
+        }
+    }
+
+    public Game watch(String hello) {
+        /* The game a spectator asked for in an "A [id] [B]" hello, the
+           newest game if no id was given, or null if there is no such
+           game. */
+        String[] fields = hello.trim().split(" +");
+        if (fields.length > 1 && !fields[1].equals("B")) {
+            try {
+                return games.get(Long.parseLong(fields[1]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return newest;
+    }
+
+    public Game.Player reconnect(Connection connection, String hello) {
+        /* Return a player to their seat from an "R token moves [B]"
+           hello, or null if the token is unknown or the game is over. A
+           game that ends before it gets to the resume sends the player
+           away itself. */
+        String[] fields = hello.trim().split(" +");
+        try {
+            Game.Player player = sessions.get(
+                Long.parseUnsignedLong(fields[1], 16));
+            int movesSeen = Integer.parseInt(fields[2]);
+            if (player != null && !player.game().isFinished()) {
+                player.resume(connection, movesSeen);
+                return player;
+            }
+        } catch (RuntimeException e) {
+            /* Malformed hello. */
+        }
+        return null;
+    }
+
+    private void started(Waiter waiter) {
+        games.put(waiter.game.id, waiter.game);
+        sessions.put(waiter.blue.token, waiter.blue);
+        sessions.put(waiter.red.token, waiter.red);
+        newest = waiter.game;
+    }
+
+    private void sweep() {
+        /* Runs on the lobby thread. Anything thrown here would cancel the
+           schedule, so failures are only reported. */
+        try {
+            long now = System.currentTimeMillis();
+            for (AtomicReference<Waiter> slot : slots.values()) {
+                Waiter waiter = slot.get();
+                if (waiter != null) {
+                    expire(slot, waiter, now - waiter.since);
+                }
+            }
+            games.values().removeIf(Game::isFinished);
+            sessions.values().removeIf(player -> player.game().isFinished());
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void expire(AtomicReference<Waiter> slot, Waiter waiter,
+                        long waited) {
+        if (!waiter.connection.isOpen()) {
+            slot.compareAndSet(waiter, null);
+        } else if (computer != null && waited >= computerWait) {
+            if (slot.compareAndSet(waiter, null)) {
+                if (waiter.seatRed(ComputerPlayer.seat(waiter.game, 'R',
+                                                       computer))) {
+                    started(waiter);
+                }
+            }
+        } else if (maxWait > 0 && waited >= maxWait) {
+            if (slot.compareAndSet(waiter, null)) {
+                waiter.connection.information("No opponent found");
+                waiter.connection.flush();
+                waiter.connection.close();
+            }
+        }
+    }
+
+    private static final class Waiter {
+        /* A game with its blue player's connection. The two seats are
+           filled by different threads, possibly in either order, and
+           whichever is filled last starts the game and returns true. */
+        final Game game;
+        final Connection connection;
+        final long since = System.currentTimeMillis();
+        private volatile Game.Player blue;
+        private volatile Game.Player red;
+        private final AtomicInteger emptySeats = new AtomicInteger(2);
+
+        Waiter(Game game, Connection connection) {
+            this.game = game;
+            this.connection = connection;
+        }
+
+        boolean seatBlue(Game.Player player) {
+            blue = player;
+            return seated();
+        }
+
+        boolean seatRed(Game.Player player) {
+            red = player;
+            return seated();
+        }
+
+        private boolean seated() {
+            if (emptySeats.decrementAndGet() == 0) {
+                game.start(blue, red);
+                return true;
+            }
+            return false;
+        }
+    }
+}
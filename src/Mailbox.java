@@ -0,0 +1,156 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Ray Santana
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+class Mailbox {
+    /* Messages for one game, sent from any thread and run one at a time
+       on the game's worker. The queue is a linked list with many senders
+       and one reader and takes no locks: a sender swaps its node in as the
+       tail with a single exchange and then links the old tail to it, and
+       only the worker moves the head. A mailbox that gets a message while
+       idle is handed to its worker, which runs messages until the box is
+       empty, or until a batch is done and other games get a turn. Each
+       game is pinned to one of a fixed set of workers, one per core, so
+       a game's state is only ever touched by one thread and messages from
+       one sender run in the order they were sent. */
+    private static final int BATCH = 64; /* messages per turn */
+    private static final Worker[] WORKERS = startWorkers(
+        Runtime.getRuntime().availableProcessors());
+    private final Worker worker;
+    private final AtomicReference<Node> tail;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private Node head; /* only touched by the worker */
+
+    Mailbox(long id) {
+        worker = WORKERS[(int) Math.floorMod(id, (long) WORKERS.length)];
+        head = new Node(null);
+        tail = new AtomicReference<>(head);
+    }
+
+    void send(Runnable message) {
+        Node node = new Node(message);
+        tail.getAndSet(node).next = node;
+        if (scheduled.compareAndSet(false, true)) {
+            worker.ready(this);
+        }
+    }
+
+    private void run() {
+        /* On the worker thread. A sender that has swapped the tail but not
+           linked the old one yet is only a few instructions away from
+           doing so, and is waited for. */
+        for (int i = 0; i < BATCH; i++) {
+            Node next = head.next;
+            if (next == null) {
+                if (tail.get() != head) {
+                    while ((next = head.next) == null) {
+                        Thread.onSpinWait();
+                    }
+                } else {
+                    /* Empty. A message sent while the flag was still set
+                       did not schedule the box, so look once more. */
+                    scheduled.set(false);
+                    if (tail.get() == head
+                     || !scheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+            Runnable message = next.message;
+            next.message = null;
+            head = next;
+            try {
+                message.run();
+            } catch (RuntimeException e) {
+                /* One bad message must not stop the worker's other
+                   games. */
+                e.printStackTrace();
+            }
+        }
+        worker.ready(this);
+    }
+
+    private static Worker[] startWorkers(int count) {
+        Worker[] workers = new Worker[count];
+        for (int i = 0; i < count; i++) {
+            workers[i] = new Worker("game-" + i);
+            workers[i].start();
+        }
+        return workers;
+    }
+
+    private static final class Node {
+        volatile Node next;
+        Runnable message;
+
+        Node(Runnable message) {
+            this.message = message;
+        }
+    }
+
+    private static final class Worker extends Thread {
+        /* Runs the mailboxes that have messages, in the order they became
+           ready, and parks when there are none. */
+        private final Queue<Mailbox> ready = new ConcurrentLinkedQueue<>();
+        private volatile boolean idle = false;
+
+        Worker(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        void ready(Mailbox mailbox) {
+            /* The worker announces it is idle before its last look at the
+               queue, so either it sees this mailbox or it is unparked. */
+            ready.add(mailbox);
+            if (idle) {
+                LockSupport.unpark(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Mailbox mailbox = ready.poll();
+                if (mailbox != null) {
+                    mailbox.run();
+                    continue;
+                }
+                idle = true;
+                if (ready.isEmpty()) {
+                    LockSupport.park(this);
+                }
+                idle = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Ray Santana
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import com.sun.net.httpserver.HttpServer;
+
+final class Metrics implements DynamicMBean {
+    /* Process-wide server metrics. Counters are striped adders and
+       latencies go into lock-free histograms, so recording never blocks
+       a game's worker. A move's latency runs from the moment it was read
+       to the end of its handling, and includes the time it waited in the
+       game's mailbox, which is also recorded on its own. Readers
+       get a snapshot of every value, which is served as text over HTTP on
+       the loopback address and as the attributes of one JMX bean. */
+    static final Metrics SERVER = new Metrics();
+    private static final int RATE_WINDOW = 10; /* seconds */
+
+    final LongAdder activeGames = new LongAdder();
+    final LongAdder connectedPlayers = new LongAdder();
+    final LongAdder moves = new LongAdder();
+    final LongAdder invalidMoves = new LongAdder();
+    final LongAdder disconnects = new LongAdder();
+    final LongAdder reconnects = new LongAdder();
+    final LongAdder gamesFinished = new LongAdder();
+    final LongAdder gamesAbandoned = new LongAdder();
+    final LongAdder forfeits = new LongAdder();
+    final LongAdder overflows = new LongAdder();
+    final Histogram moveLatency = new Histogram();    /* nanoseconds */
+    final Histogram mailboxWait = new Histogram();    /* nanoseconds */
+    final Histogram gameDuration = new Histogram();   /* milliseconds */
+
+    /* Move totals sampled once a second, for the recent move rate. */
+    private final AtomicLongArray moveSamples =
+        new AtomicLongArray(RATE_WINDOW + 1);
+    private volatile long sampleCount = 0;
+    private HttpServer http;
+
+    private Metrics() {}
+
+    void expose(int httpPort) throws IOException, JMException {
+        /* Register the JMX bean, start sampling the move rate and, for a
+           port other than 0, serve the metrics at /metrics. */
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+            new ObjectName("dotsandboxes:type=Server"));
+        ScheduledExecutorService sampler =
+            Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+        sampler.scheduleAtFixedRate(this::sample, 1, 1, TimeUnit.SECONDS);
+        if (httpPort > 0) {
+            http = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), httpPort), 0);
+            page("/metrics", query -> text());
+            http.start();
+            System.out.println("Metrics at http://localhost:" + httpPort
+                             + "/metrics");
+        }
+    }
+
+    void page(String path, Function<String, String> content) {
+        /* Serve more plain text next to the metrics, made from the query
+           string of each request. Does nothing without -metrics. */
+        if (http == null) {
+            return;
+        }
+        http.createContext(path, exchange -> {
+            byte[] body = content.apply(exchange.getRequestURI().getQuery())
+                                 .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        });
+    }
+
+    private void sample() {
+        /* Only the sampler thread writes the samples, and it publishes
+           each one by bumping the count afterwards. */
+        long samples = sampleCount;
+        moveSamples.set((int) (samples % moveSamples.length()), moves.sum());
+        sampleCount = samples + 1;
+    }
+
+    private double movesPerSecond() {
+        long samples = sampleCount;
+        if (samples < 2) {
+            return 0.0;
+        }
+        int span = (int) Math.min(samples - 1, RATE_WINDOW);
+        int length = moveSamples.length();
+        long newest = moveSamples.get((int) ((samples - 1) % length));
+        long oldest = moveSamples.get((int) ((samples - 1 - span) % length));
+        return (double) (newest - oldest) / span;
+    }
+
+    Map<String, Number> snapshot() {
+        /* Every metric by name. Latencies are in microseconds. */
+        Map<String, Number> values = new LinkedHashMap<>();
+        values.put("activeGames", activeGames.sum());
+        values.put("connectedPlayers", connectedPlayers.sum());
+        values.put("moves", moves.sum());
+        values.put("movesPerSecond", movesPerSecond());
+        values.put("invalidMoves", invalidMoves.sum());
+        values.put("disconnects", disconnects.sum());
+        values.put("reconnects", reconnects.sum());
+        values.put("gamesFinished", gamesFinished.sum());
+        values.put("gamesAbandoned", gamesAbandoned.sum());
+        values.put("forfeits", forfeits.sum());
+        values.put("overflows", overflows.sum());
+        putLatency(values, "moveLatency", moveLatency);
+        putLatency(values, "mailboxWait", mailboxWait);
+        values.put("gameDurationMeanMillis", gameDuration.mean());
+        values.put("gameDurationP50Millis", gameDuration.percentile(50));
+        values.put("gameDurationP99Millis", gameDuration.percentile(99));
+        values.put("gameDurationMaxMillis", gameDuration.max());
+        return values;
+    }
+
+    private static void putLatency(Map<String, Number> values, String name,
+                                   Histogram histogram) {
+        values.put(name + "P50Micros", histogram.percentile(50) / 1e3);
+        values.put(name + "P99Micros", histogram.percentile(99) / 1e3);
+        values.put(name + "P999Micros", histogram.percentile(99.9) / 1e3);
+        values.put(name + "MaxMicros", histogram.max() / 1e3);
+    }
+
+    String text() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Number> entry : snapshot().entrySet()) {
+            text.append(entry.getKey()).append(' ')
+                .append(entry.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /* JMX: every snapshot value is a read-only attribute. */
+
+    public Object getAttribute(String name)
+            throws AttributeNotFoundException {
+        Object value = snapshot().get(name);
+        if (value == null) {
+            throw new AttributeNotFoundException(name);
+        }
+        return value;
+    }
+
+    public AttributeList getAttributes(String[] names) {
+        Map<String, Number> values = snapshot();
+        AttributeList attributes = new AttributeList();
+        for (String name : names) {
+            if (values.containsKey(name)) {
+                attributes.add(new Attribute(name, values.get(name)));
+            }
+        }
+        return attributes;
+    }
+
+    public void setAttribute(Attribute attribute)
+            throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName()
+                                           + " is read-only");
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String action, Object[] params, String[] signature)
+            throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(action));
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Number> values = snapshot();
+        MBeanAttributeInfo[] attributes =
+            new MBeanAttributeInfo[values.size()];
+        int i = 0;
+        for (Map.Entry<String, Number> entry : values.entrySet()) {
+            attributes[i++] = new MBeanAttributeInfo(entry.getKey(),
+                entry.getValue().getClass().getName(), entry.getKey(),
+                true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "Dots and Boxes server",
+                             attributes, null, null, null);
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Ray Santana
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+class Multiplexer {
+    /* One client connection carrying many games at once, for load
+       generators, computer players and tournament runners that would
+       otherwise open a socket per game. The client asks for it with an
+       "X [B]" hello and then opens seats, each under a channel number of
+       its own choosing, with the usual G or R hello. Every message in
+       either direction carries its channel: text lines start with
+       "#channel ", and binary frames with the channel (32-bit) before the
+       events. To the lobby and the game a seat is a connection like any
+       other; what it sends goes out through the client's connection, in
+       its framing and under its backpressure limit. Reading is done by
+       the connection's one reading thread, so seats are only opened and
+       looked up there; a seat leaves the map from any thread once its
+       game has ended or it is closed. */
+    private final StreamConnection connection;
+    private final Lobby lobby;
+    private final ConcurrentHashMap<Integer, Seat> seats =
+        new ConcurrentHashMap<>();
+
+    Multiplexer(StreamConnection connection, Lobby lobby) {
+        this.connection = connection;
+        this.lobby = lobby;
+    }
+
+    void command(String line) {
+        /* Process one "#channel message" line. A line without a channel
+           throws, and the connection is dropped like for any garbled
+           command. */
+        int space = line.indexOf(' ');
+        if (!line.startsWith("#") || space < 0) {
+            throw new IllegalArgumentException("No channel: " + line);
+        }
+        int channel = Integer.parseInt(line.substring(1, space));
+        String command = line.substring(space + 1);
+        char type = command.isEmpty() ? ' ' : command.charAt(0);
+        if (type == 'G' || type == 'R' || type == 'A') {
+            open(channel, command);
+            return;
+        }
+        Seat seat = seats.get(channel);
+        if (seat != null && !seat.player.handleCommand(command)) {
+            seat.close();
+        }
+    }
+
+    void frame(byte[] frame, int length) {
+        /* Process one binary frame. An H event opens a seat with the
+           hello it carries:
+
+             H = type, length (unsigned 16-bit), ASCII hello
+
+           and is the only event in its frame. */
+        if (length < 4) {
+            throw new IllegalArgumentException("No channel");
+        }
+        int channel = Protocol.getInt(frame, 0);
+        if (length > 4 && frame[4] == 'H') {
+            int size = (length >= 7)
+                     ? ((frame[5] & 0xff) << 8) | (frame[6] & 0xff) : -1;
+            if (size < 0 || 7 + size > length) {
+                throw new IllegalArgumentException("Truncated hello");
+            }
+            open(channel, new String(frame, 7, size,
+                                     StandardCharsets.US_ASCII));
+            return;
+        }
+        Seat seat = seats.get(channel);
+        if (seat != null && !seat.player.handleFrame(frame, 4, length)) {
+            seat.close();
+        }
+    }
+
+    private void open(int channel, String hello) {
+        /* A channel whose game is over may be used again; one whose game
+           is still going keeps it. The seat is in the map before it joins,
+           so a game that ends at once still takes it out again. */
+        Seat seat = new Seat(channel);
+        if (channel < 0 || hello.startsWith("A")) {
+            seat.information(channel < 0 ? "Invalid channel"
+                : "Spectators need a connection of their own");
+            seat.flush();
+            return;
+        }
+        Seat old = seats.get(channel);
+        if (old != null && !old.player.game().isFinished()) {
+            seat.information("Channel in use");
+            seat.flush();
+            return;
+        }
+        seats.put(channel, seat);
+        seat.player = hello.startsWith("R") ? lobby.reconnect(seat, hello)
+                                            : lobby.join(seat, hello);
+        if (seat.player == null) {
+            seats.remove(channel, seat);
+            seat.information("Game not found");
+            seat.flush();
+        }
+    }
+
+    void disconnected() {
+        /* The client's connection is gone, and with it every seat. */
+        for (Seat seat : seats.values()) {
+            seat.closed = true;
+            seat.player.disconnected(seat);
+        }
+        seats.clear();
+    }
+
+    Game.Player[] players() {
+        /* The players of the games still going, for the backpressure
+           limit; called from the writer, so a seat may be mid-join. */
+        return seats.values().stream().map(seat -> seat.player)
+                    .filter(player -> player != null)
+                    .toArray(Game.Player[]::new);
+    }
+
+    private final class Seat extends StreamConnection {
+        /* One game's view of the shared connection. Closing a seat, or
+           the end of its game, only frees its channel. */
+        private volatile Game.Player player;
+        private volatile boolean closed = false;
+
+        Seat(int channel) {
+            this.channel = channel;
+            binary = connection.binary;
+        }
+
+        protected void write(byte[] bytes, int offset, int length) {
+            if (!closed) {
+                connection.write(bytes, offset, length);
+            }
+        }
+
+        public synchronized void gameEnded(char winner) {
+            /* The game is over, so its messages still go out but the
+               connection no longer answers for it. */
+            super.gameEnded(winner);
+            seats.remove(channel, this);
+        }
+
+        public void close() {
+            closed = true;
+            seats.remove(channel, this);
+        }
+
+        public boolean isOpen() {
+            return !closed && connection.isOpen();
+        }
+    }
+}
@@ -0,0 +1,511 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Ray Santana
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class NioServer {
+    /* Event-loop version of the server. A single acceptor hands every new
+       connection to one of a fixed number of selector threads, and each of
+       those threads multiplexes all of its connections. Commands are parsed
+       on the I/O thread that read them and sent to the game's mailbox, so
+       the two players of a game can live on different loops and a loop
+       never waits for a game. Spectators are fed by their loop, which
+       checks their games' feeds a few times a second and writes the shared
+       bytes without copying. What is queued for a player is bounded by
+       the backpressure limit, so a client that stops reading is dropped
+       instead of growing the heap. */
+    private static final int WATCH_INTERVAL = 20; /* milliseconds */
+    private static final int MAX_LINE = 256;
+    private static final int MAX_GATHER = 16;
+    private final int port;
+    private final Lobby lobby;
+    private final Backpressure backpressure;
+    private final EventLoop[] loops;
+
+    public NioServer(int port, int ioThreads, Lobby lobby,
+                     Backpressure backpressure) throws IOException {
+        this.port = port;
+        this.lobby = lobby;
+        this.backpressure = backpressure;
+        this.loops = new EventLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new EventLoop();
+        }
+    }
+
+    public void run() throws IOException {
+        /* Accept players and spread them round-robin over the I/O threads.
+           Each connection joins the lobby from its I/O thread once its
+           handshake is done. */
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(port));
+            for (int i = 0; i < loops.length; i++) {
+                Thread thread = new Thread(loops[i], "io-" + i);
+                loops[i].thread = thread;
+                thread.start();
+            }
+            System.out.println("Server has started with " + loops.length
+                             + " I/O threads...");
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = listener.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                ChannelConnection connection = new ChannelConnection(lobby,
+                    backpressure, channel, loops[next++ % loops.length]);
+                connection.loop.register(connection);
+            }
+        }
+    }
+
+    private static final class EventLoop implements Runnable {
+        /* One selector thread. Other threads hand it work through the
+           lock-free queues and wake the selector up. */
+        private final Selector selector;
+        private final Queue<ChannelConnection> registrations =
+            new ConcurrentLinkedQueue<>();
+        private final Queue<ChannelConnection> writes =
+            new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(8192);
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        private final ArrayDeque<ChannelConnection> handshakes =
+            new ArrayDeque<>();
+        private final ArrayList<ChannelConnection> spectators =
+            new ArrayList<>();
+        private Thread thread;
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void register(ChannelConnection connection) {
+            registrations.add(connection);
+            selector.wakeup();
+        }
+
+        void scheduleWrite(ChannelConnection connection) {
+            /* Writes requested from this loop's own thread are picked up at
+               the end of the current iteration without a wakeup. */
+            writes.add(connection);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            ChannelConnection connection;
+            while (true) {
+                try {
+                    long wait = spectators.isEmpty() ? 0 : WATCH_INTERVAL;
+                    if (!handshakes.isEmpty()) {
+                        long left = handshakes.peek().deadline
+                                  - System.currentTimeMillis();
+                        wait = Math.max(1, (wait == 0) ? left
+                                                       : Math.min(wait, left));
+                    }
+                    selector.select(wait);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+
+                while ((connection = registrations.poll()) != null) {
+                    try {
+                        connection.key = connection.channel.register(
+                            selector, SelectionKey.OP_READ, connection);
+                        connection.deadline = System.currentTimeMillis()
+                                            + Server.HANDSHAKE_TIMEOUT;
+                        handshakes.add(connection);
+                    } catch (IOException e) {
+                        connection.disconnect();
+                    }
+                }
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    connection = (ChannelConnection) key.attachment();
+                    if (key.isValid() && key.isWritable()) {
+                        connection.drain(gather);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read(connection);
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                expireHandshakes();
+                feedSpectators();
+
+                while ((connection = writes.poll()) != null) {
+                    connection.drain(gather);
+                }
+            }
+        }
+
+        private void expireHandshakes() {
+            /* Connections that have not sent a G message in time are
+               paired with the server's default grid size. Deadlines are
+               added in order, so only the head needs checking. */
+            long now = System.currentTimeMillis();
+            ChannelConnection connection;
+            while ((connection = handshakes.peek()) != null) {
+                if (!connection.joined() && connection.watching == null
+                 && connection.isOpen()) {
+                    if (connection.deadline > now) {
+                        return;
+                    }
+                    connection.join("");
+                }
+                handshakes.poll();
+            }
+        }
+
+        private void feedSpectators() {
+            /* Queue views of whatever each spectator has not been sent,
+               once the socket has taken everything queued before. A
+               spectator waits here until the game has handed over its
+               feed. */
+            Iterator<ChannelConnection> iterator = spectators.iterator();
+            while (iterator.hasNext()) {
+                ChannelConnection spectator = iterator.next();
+                if (spectator.closed) {
+                    iterator.remove();
+                    continue;
+                }
+                if (spectator.feed == null) {
+                    spectator.feed = spectator.watching.getNow(null);
+                }
+                if (spectator.feed != null && spectator.outbound.isEmpty()
+                 && spectator.isOpen()) {
+                    ByteBuffer bytes;
+                    while ((bytes = spectator.feed.next(spectator.fed))
+                           != null) {
+                        spectator.outbound.add(bytes);
+                        spectator.queuedBytes.addAndGet(bytes.remaining());
+                        spectator.fed += bytes.remaining();
+                    }
+                    if (spectator.feed.finished(spectator.fed)) {
+                        spectator.closing = true;
+                    }
+                    spectator.drain(gather);
+                }
+            }
+        }
+
+        private void read(ChannelConnection connection) {
+            readBuffer.clear();
+            try {
+                if (connection.channel.read(readBuffer) < 0) {
+                    connection.disconnect();
+                    return;
+                }
+            } catch (IOException e) {
+                connection.disconnect();
+                return;
+            }
+            readBuffer.flip();
+            connection.received(readBuffer);
+        }
+    }
+
+    private static final class ChannelConnection extends StreamConnection {
+        /* Non-blocking connection. Any thread may queue outgoing messages,
+           but only the owning event loop touches the channel. */
+        final Lobby lobby;
+        final Backpressure backpressure;
+        final SocketChannel channel;
+        final EventLoop loop;
+        SelectionKey key;
+        long deadline;
+        volatile Game.Player player;
+        volatile Multiplexer multiplexer;
+        CompletableFuture<Broadcast.Feed> watching;
+        Broadcast.Feed feed;
+        long fed;
+        private final Queue<ByteBuffer> outbound =
+            new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+        private final AtomicInteger queuedBytes = new AtomicInteger();
+        private final byte[] line = new byte[MAX_LINE];
+        private int lineLength = 0;
+        private int frameLength = -1;
+        private volatile boolean closing = false;
+        private volatile boolean overflowed = false;
+        private boolean closed = false;
+
+        ChannelConnection(Lobby lobby, Backpressure backpressure,
+                          SocketChannel channel, EventLoop loop) {
+            this.lobby = lobby;
+            this.backpressure = backpressure;
+            this.channel = channel;
+            this.loop = loop;
+            Metrics.SERVER.connectedPlayers.increment();
+        }
+
+        protected void write(byte[] bytes, int offset, int length) {
+            /* Called with a whole batch of messages, so this is one copy
+               and at most one wakeup per move. */
+            if (closing) {
+                return;
+            }
+            if (queuedBytes.addAndGet(length) > backpressure.limit) {
+                /* The loop drops the connection at its next drain. */
+                closing = true;
+                overflowed = true;
+                backpressure.overflowed((multiplexer != null)
+                                        ? multiplexer.players()
+                                        : new Game.Player[] {player});
+                scheduleFlush();
+                return;
+            }
+            outbound.add(ByteBuffer.wrap(
+                Arrays.copyOfRange(bytes, offset, offset + length)));
+            scheduleFlush();
+        }
+
+        public void close() {
+            /* Close once everything already queued has been written. */
+            closing = true;
+            scheduleFlush();
+        }
+
+        public boolean isOpen() {
+            return !closing;
+        }
+
+        void join(String hello) {
+            binary = wantsBinary(hello);
+            if (hello.startsWith("A")) {
+                watch(lobby.watch(hello));
+            } else if (hello.startsWith("X")) {
+                multiplexer = new Multiplexer(this, lobby);
+                welcome('X', 0);
+                flush();
+            } else if (hello.startsWith("R")) {
+                player = lobby.reconnect(this, hello);
+                if (player == null) {
+                    information("Game not found");
+                    flush();
+                    close();
+                }
+            } else {
+                player = lobby.join(this, hello);
+            }
+        }
+
+        private void watch(Game game) {
+            if (game == null) {
+                information("No game to watch");
+                flush();
+                close();
+                return;
+            }
+            welcome('S', game.gridLength());
+            information("Watching game " + game.id);
+            flush();
+            watching = game.watch(binary);
+            loop.spectators.add(this);
+        }
+
+        boolean joined() {
+            return player != null || multiplexer != null;
+        }
+
+        private void scheduleFlush() {
+            if (writeScheduled.compareAndSet(false, true)) {
+                loop.scheduleWrite(this);
+            }
+        }
+
+        void drain(ByteBuffer[] gather) {
+            /* Write as much of the queue as the socket accepts, several
+               messages per system call. Register for OP_WRITE only while
+               the socket is backed up. */
+            writeScheduled.set(false);
+            if (closed || key == null) {
+                return;
+            }
+            if (overflowed) {
+                outbound.clear();
+                disconnect();
+                return;
+            }
+            try {
+                while (!outbound.isEmpty()) {
+                    int count = 0;
+                    for (ByteBuffer buffer : outbound) {
+                        gather[count++] = buffer;
+                        if (count == gather.length) {
+                            break;
+                        }
+                    }
+                    queuedBytes.addAndGet((int) -channel.write(gather, 0,
+                                                               count));
+                    boolean full = false;
+                    for (int i = 0; i < count; i++) {
+                        if (gather[i].hasRemaining()) {
+                            full = true;
+                            break;
+                        }
+                        outbound.poll();
+                    }
+                    Arrays.fill(gather, 0, count, null);
+                    if (full) {
+                        key.interestOps(SelectionKey.OP_READ
+                                      | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                if (closing) {
+                    closeNow();
+                }
+            } catch (IOException e) {
+                disconnect();
+            }
+        }
+
+        void received(ByteBuffer data) {
+            /* Split the incoming bytes into protocol lines, or into frames
+               once binary framing has been agreed. */
+            if (watching != null) {
+                /* Spectators have nothing to say. */
+                return;
+            }
+            while (data.hasRemaining() && !closing) {
+                byte b = data.get();
+                if (binary && joined()) {
+                    receivedFrameByte(b);
+                } else if (b == '\n') {
+                    int length = lineLength;
+                    if (length > 0 && line[length-1] == '\r') {
+                        --length;
+                    }
+                    lineLength = 0;
+                    String command = new String(line, 0, length,
+                                                StandardCharsets.US_ASCII);
+                    if (!joined()) {
+                        /* The first line completes the handshake. */
+                        join(command);
+                        if (watching != null || !joined()) {
+                            return;
+                        }
+                        continue;
+                    }
+                    try {
+                        if (multiplexer != null) {
+                            multiplexer.command(command);
+                        } else if (!player.handleCommand(command)) {
+                            close();
+                        }
+                    } catch (Exception e) {
+                        disconnect();
+                    }
+                } else if (lineLength == MAX_LINE) {
+                    disconnect();
+                } else {
+                    line[lineLength++] = b;
+                }
+            }
+        }
+
+        private void receivedFrameByte(byte b) {
+            /* The two length bytes are collected like the rest of the frame
+               and replaced by the payload once the length is known. */
+            line[lineLength++] = b;
+            if (frameLength < 0) {
+                if (lineLength == 2) {
+                    frameLength = ((line[0] & 0xff) << 8) | (line[1] & 0xff);
+                    lineLength = 0;
+                    if (frameLength > MAX_LINE) {
+                        disconnect();
+                        return;
+                    }
+                } else {
+                    return;
+                }
+            }
+            if (lineLength == frameLength) {
+                int length = lineLength;
+                lineLength = 0;
+                frameLength = -1;
+                try {
+                    if (multiplexer != null) {
+                        multiplexer.frame(line, length);
+                    } else if (!player.handleFrame(line, 0, length)) {
+                        close();
+                    }
+                } catch (Exception e) {
+                    disconnect();
+                }
+            }
+        }
+
+        void disconnect() {
+            if (!closed) {
+                closing = true;
+                closeNow();
+                if (multiplexer != null) {
+                    multiplexer.disconnected();
+                } else if (player != null) {
+                    player.disconnected(this);
+                }
+            }
+        }
+
+        private void closeNow() {
+            /* Runs once, on the loop thread. */
+            closed = true;
+            Metrics.SERVER.connectedPlayers.decrement();
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {}
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Ray Santana
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+final class Protocol {
+    /* Encoding shared by the server and the clients. The text protocol is
+       described at the top of Server.java. A client that ends its G, A or
+       R message with " B" asks for binary framing; the server confirms
+       by ending the (always text) W message with " B", and from then on
+       both sides send frames instead of lines:
+
+         frame   = length (unsigned 16-bit, big-endian) + events
+         V, O    = type, 'Y' or 'N', position (32-bit)
+         S, L    = type, color, position (32-bit)
+         E       = type, winner
+         I       = type, length (unsigned 16-bit), ASCII text (at most
+                   1024 characters)
+         K       = type, session token (64-bit)
+         M       = type, position (32-bit)
+         Q       = type, color
+
+       Event types are the same letters as in the text protocol. The server
+       puts every event caused by one move in a single frame.
+
+       A multiplexed connection ("X [B]", see Multiplexer) carries many
+       games, each on a channel chosen by the client. Text lines are
+       prefixed with "#channel ", and frames carry the channel right
+       after the length, which counts it:
+
+         frame   = length + channel (32-bit) + events
+         H       = type, length (unsigned 16-bit), ASCII G or R hello
+         W       = type, color, grid length (32-bit)
+
+       H opens a game on its channel and is alone in its frame. With
+       binary framing a game's welcome is the W event; the framing was
+       agreed when the connection was. */
+    static final int MAX_FRAME = 65535;
+
+    private Protocol() {}
+
+    static String readLine(InputStream input) throws IOException {
+        /* Read one ASCII text line without buffering past its end, so the
+           stream can carry binary frames afterwards. Returns null at the
+           end of the stream. */
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = input.read()) != '\n') {
+            if (b < 0) {
+                return (line.length() == 0) ? null : line.toString();
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    static boolean readFrame(DataInputStream input, MessageListener listener)
+            throws IOException {
+        /* Decode one binary frame from the server. Returns true if the
+           frame ended the game. */
+        byte[] frame = new byte[input.readUnsignedShort()];
+        input.readFully(frame);
+        return decodeFrame(frame, 0, frame.length, listener);
+    }
+
+    static boolean decodeFrame(byte[] frame, int from, int to,
+                               MessageListener listener) throws IOException {
+        /* Decode the events between from and to. */
+        boolean ended = false;
+        int i = from;
+        while (i < to) {
+            char type = (char) frame[i++];
+            switch (type) {
+                case 'W':
+                    listener.welcome((char) frame[i], getInt(frame, i+1),
+                                     true);
+                    i += 5;
+                    break;
+                case 'V':
+                    listener.moveValidated(frame[i] == 'Y', getInt(frame, i+1));
+                    i += 5;
+                    break;
+                case 'O':
+                    listener.opponentMoved(frame[i] == 'Y', getInt(frame, i+1));
+                    i += 5;
+                    break;
+                case 'S':
+                    listener.squareCompleted((char) frame[i],
+                                             getInt(frame, i+1));
+                    i += 5;
+                    break;
+                case 'L':
+                    listener.lineDrawn((char) frame[i], getInt(frame, i+1));
+                    i += 5;
+                    break;
+                case 'E':
+                    listener.gameEnded((char) frame[i++]);
+                    ended = true;
+                    break;
+                case 'K':
+                    listener.session(getLong(frame, i));
+                    i += 8;
+                    break;
+                case 'I':
+                    int length = ((frame[i] & 0xff) << 8) | (frame[i+1] & 0xff);
+                    listener.information(new String(frame, i+2, length,
+                                             StandardCharsets.US_ASCII));
+                    i += 2 + length;
+                    break;
+                default:
+                    throw new IOException("Unknown event type " + (int) type);
+            }
+        }
+        return ended;
+    }
+
+    static void writeMove(OutputStream output, boolean binary, int position)
+            throws IOException {
+        writeMove(output, binary, -1, position);
+    }
+
+    static void writeMove(OutputStream output, boolean binary, int channel,
+                          int position) throws IOException {
+        /* Send an M message in one write, on a channel of a multiplexed
+           connection unless the channel is negative. */
+        if (binary) {
+            int start = (channel < 0) ? 2 : 6;
+            byte[] frame = new byte[start + 5];
+            frame[1] = (byte) (frame.length - 2);
+            if (channel >= 0) {
+                putInt(frame, 2, channel);
+            }
+            frame[start] = 'M';
+            putInt(frame, start + 1, position);
+            output.write(frame);
+        } else {
+            output.write((tag(channel) + "M " + position + "\n")
+                         .getBytes(StandardCharsets.US_ASCII));
+        }
+        output.flush();
+    }
+
+    static void writeQuit(OutputStream output, boolean binary, char color)
+            throws IOException {
+        writeQuit(output, binary, -1, color);
+    }
+
+    static void writeQuit(OutputStream output, boolean binary, int channel,
+                          char color) throws IOException {
+        if (binary && channel < 0) {
+            output.write(new byte[] {0, 2, 'Q', (byte) color});
+        } else if (binary) {
+            byte[] frame = {0, 6, 0, 0, 0, 0, 'Q', (byte) color};
+            putInt(frame, 2, channel);
+            output.write(frame);
+        } else {
+            output.write((tag(channel) + "Q " + color + "\n")
+                         .getBytes(StandardCharsets.US_ASCII));
+        }
+        output.flush();
+    }
+
+    static void writeHello(OutputStream output, boolean binary, int channel,
+                           String hello) throws IOException {
+        /* Open a game on a channel of a multiplexed connection. */
+        if (binary) {
+            byte[] text = hello.getBytes(StandardCharsets.US_ASCII);
+            byte[] frame = new byte[9 + text.length];
+            frame[0] = (byte) ((frame.length - 2) >>> 8);
+            frame[1] = (byte) (frame.length - 2);
+            putInt(frame, 2, channel);
+            frame[6] = 'H';
+            frame[7] = (byte) (text.length >>> 8);
+            frame[8] = (byte) text.length;
+            System.arraycopy(text, 0, frame, 9, text.length);
+            output.write(frame);
+        } else {
+            output.write((tag(channel) + hello + "\n")
+                         .getBytes(StandardCharsets.US_ASCII));
+        }
+        output.flush();
+    }
+
+    private static String tag(int channel) {
+        return (channel < 0) ? "" : "#" + channel + " ";
+    }
+
+    static int getInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24)
+             | ((bytes[offset+1] & 0xff) << 16)
+             | ((bytes[offset+2] & 0xff) << 8)
+             | (bytes[offset+3] & 0xff);
+    }
+
+    static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset+1] = (byte) (value >>> 16);
+        bytes[offset+2] = (byte) (value >>> 8);
+        bytes[offset+3] = (byte) value;
+    }
+
+    static long getLong(byte[] bytes, int offset) {
+        return ((long) getInt(bytes, offset) << 32)
+             | (getInt(bytes, offset+4) & 0xffffffffL);
+    }
+
+    static void putLong(byte[] bytes, int offset, long value) {
+        putInt(bytes, offset, (int) (value >>> 32));
+        putInt(bytes, offset+4, (int) value);
+    }
+}
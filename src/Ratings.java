@@ -0,0 +1,276 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Ray Santana
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+class Ratings {
+    /* Elo ratings of named players, with a leaderboard. Games hand their
+       results over through a lock-free queue and go on; one thread takes
+       them off in batches and is the only writer of the ratings, so an
+       update that changes two players' ratings needs no lock and the move
+       path never waits for it. Every player's standing is an immutable
+       value, kept in a map by name and in a concurrent skip list ordered
+       by rating, which readers walk for the top of the board while
+       updates go on. A player's rank is counted in a Fenwick tree over
+       whole rating points, so it costs a logarithm of the rating range
+       rather than a walk down the board. The standings are written to a
+       text file every few seconds, through a temporary file so a crash
+       never leaves half a snapshot, and read back at startup. */
+    static final double INITIAL_RATING = 1500;
+    private static final double K_FACTOR = 32;
+    private static final int MAX_POINTS = 4096; /* ratings are clamped */
+    private static final long DRAIN_INTERVAL = 10000000L; /* nanoseconds */
+    private static final long SNAPSHOT_INTERVAL = 10000000000L;
+    private static final Comparator<Standing> BY_RATING =
+        Comparator.comparingDouble((Standing standing) -> -standing.rating)
+                  .thenComparing(standing -> standing.name);
+    private final Path file;
+    private final Queue<String[]> results = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<String, Standing> players =
+        new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<Standing> leaderboard =
+        new ConcurrentSkipListSet<>(BY_RATING);
+    private final AtomicIntegerArray counts =
+        new AtomicIntegerArray(MAX_POINTS);
+    private volatile boolean changed = false;
+
+    Ratings(Path file) throws IOException {
+        /* Start from the snapshot in the file, if there is one, and keep
+           it up to date from then on. */
+        this.file = file;
+        if (Files.exists(file)) {
+            for (String line : Files.readAllLines(file,
+                                                  StandardCharsets.UTF_8)) {
+                String[] fields = line.trim().split(" +");
+                if (fields.length == 6) {
+                    put(new Standing(fields[0],
+                                     Double.parseDouble(fields[1]),
+                                     Integer.parseInt(fields[2]),
+                                     Integer.parseInt(fields[3]),
+                                     Integer.parseInt(fields[4]),
+                                     Integer.parseInt(fields[5])));
+                }
+            }
+        }
+        Thread thread = new Thread(this::run, "ratings");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::snapshot));
+    }
+
+    static boolean validName(String name) {
+        return name.matches("[A-Za-z0-9_-]{1,20}") && !name.equals("B");
+    }
+
+    void record(String blue, String red, char winner) {
+        /* Queue the result of a game between two named players; B or R
+           for the winner, or T for a tie. Players without a name, and
+           players rated against themselves, are not rated. */
+        if (blue != null && red != null && !blue.equals(red)) {
+            results.add(new String[] {blue, red, String.valueOf(winner)});
+        }
+    }
+
+    Standing standing(String name) {
+        return players.get(name);
+    }
+
+    int rank(Standing standing) {
+        /* One more than the number of players rated above, in whole
+           points, so players on the same points share a rank. */
+        return 1 + countUpTo(MAX_POINTS)
+                 - countUpTo(points(standing.rating) + 1);
+    }
+
+    String page(String query) {
+        /* Text for the leaderboard page: the top players, as many as
+           top=n asks for (10 by default), or one player's standing for
+           name=player. The walk down the board is weakly consistent; a
+           player whose rating is being updated may be listed twice. */
+        StringBuilder text = new StringBuilder();
+        int top = 10;
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                if (parameter.startsWith("name=")) {
+                    Standing standing = standing(parameter.substring(5));
+                    return (standing == null) ? "No such player\n"
+                         : line(rank(standing), standing);
+                } else if (parameter.startsWith("top=")) {
+                    try {
+                        top = Integer.parseInt(parameter.substring(4));
+                    } catch (NumberFormatException e) {}
+                }
+            }
+        }
+        Iterator<Standing> best = leaderboard.iterator();
+        for (int i = 0; i < top && best.hasNext(); i++) {
+            Standing standing = best.next();
+            text.append(line(rank(standing), standing));
+        }
+        return text.toString();
+    }
+
+    private static String line(int rank, Standing standing) {
+        return String.format(Locale.ROOT, "%d %s %.0f %d %d %d %d%n",
+                             rank, standing.name, standing.rating,
+                             standing.games, standing.wins,
+                             standing.losses, standing.ties);
+    }
+
+    private void run() {
+        long nextSnapshot = System.nanoTime() + SNAPSHOT_INTERVAL;
+        while (true) {
+            String[] result;
+            while ((result = results.poll()) != null) {
+                rate(result[0], result[1], result[2].charAt(0));
+            }
+            if (System.nanoTime() > nextSnapshot) {
+                if (changed) {
+                    snapshot();
+                }
+                nextSnapshot = System.nanoTime() + SNAPSHOT_INTERVAL;
+            }
+            LockSupport.parkNanos(DRAIN_INTERVAL);
+        }
+    }
+
+    private void rate(String blueName, String redName, char winner) {
+        /* Standard Elo: each player's rating moves by K times the
+           difference between the score and the expected score. */
+        Standing blue = players.getOrDefault(blueName,
+                            new Standing(blueName, INITIAL_RATING, 0, 0, 0, 0));
+        Standing red = players.getOrDefault(redName,
+                           new Standing(redName, INITIAL_RATING, 0, 0, 0, 0));
+        double expected = 1 / (1 + Math.pow(10, (red.rating - blue.rating)
+                                                / 400));
+        double score = (winner == 'B') ? 1 : (winner == 'R') ? 0 : 0.5;
+        double change = K_FACTOR * (score - expected);
+        put(blue.after(blue.rating + change, score));
+        put(red.after(red.rating - change, 1 - score));
+        changed = true;
+    }
+
+    private void put(Standing standing) {
+        /* Only called by the ratings thread, or before it starts. The new
+           standing goes on the board before the old one comes off, unless
+           the rating did not change: the board then holds the old one in
+           the new one's place, so it has to come off first. */
+        Standing old = players.put(standing.name, standing);
+        if (old != null && BY_RATING.compare(old, standing) == 0) {
+            leaderboard.remove(old);
+            leaderboard.add(standing);
+            return;
+        }
+        leaderboard.add(standing);
+        count(standing.rating, 1);
+        if (old != null) {
+            leaderboard.remove(old);
+            count(old.rating, -1);
+        }
+    }
+
+    private void count(double rating, int delta) {
+        /* Tree positions are one more than the points. */
+        for (int i = points(rating) + 1; i <= MAX_POINTS; i += i & -i) {
+            counts.addAndGet(i - 1, delta);
+        }
+    }
+
+    private int countUpTo(int position) {
+        /* Number of players on fewer points than the position. */
+        int sum = 0;
+        for (int i = position; i > 0; i -= i & -i) {
+            sum += counts.get(i - 1);
+        }
+        return sum;
+    }
+
+    private static int points(double rating) {
+        return (int) Math.max(0, Math.min(MAX_POINTS - 1,
+                                          Math.round(rating)));
+    }
+
+    private synchronized void snapshot() {
+        /* Runs on the ratings thread, and once more at shutdown. */
+        changed = false;
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(temporary,
+                     StandardCharsets.UTF_8)) {
+                for (Standing standing : players.values()) {
+                    writer.write(String.format(Locale.ROOT,
+                        "%s %.3f %d %d %d %d%n", standing.name,
+                        standing.rating, standing.games, standing.wins,
+                        standing.losses, standing.ties));
+                }
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Cannot save ratings: " + e.getMessage());
+        }
+    }
+
+    static final class Standing {
+        final String name;
+        final double rating;
+        final int games;
+        final int wins;
+        final int losses;
+        final int ties;
+
+        Standing(String name, double rating, int games, int wins, int losses,
+                 int ties) {
+            this.name = name;
+            this.rating = rating;
+            this.games = games;
+            this.wins = wins;
+            this.losses = losses;
+            this.ties = ties;
+        }
+
+        Standing after(double newRating, double score) {
+            return new Standing(name, newRating, games + 1,
+                                wins + ((score == 1) ? 1 : 0),
+                                losses + ((score == 0) ? 1 : 0),
+                                ties + ((score == 0.5) ? 1 : 0));
+        }
+    }
+}
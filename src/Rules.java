@@ -0,0 +1,118 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Ray Santana
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+class Rules {
+    /* One game of Dots and Boxes with nothing but its rules: whose turn
+       it is, which lines are drawn and who owns how many boxes. A move
+       is reported to a listener as it happens, which is how the server
+       turns it into messages and the simulator into statistics, so both
+       play by exactly the same code. Not thread-safe; in the server
+       only the game's mailbox worker calls it. */
+
+    interface Listener {
+        /* The events of one move, in this order: the line, the boxes it
+           completed, then the end of the move, and the end of the game if
+           the move filled the board. */
+        void lineDrawn(char color, int position);
+        void squareCompleted(char color, int position);
+        void moveFinished(char color, int position, boolean goAgain);
+        void gameEnded(char winner);
+    }
+
+    static final Listener IGNORE = new Listener() {
+        public void lineDrawn(char color, int position) {}
+        public void squareCompleted(char color, int position) {}
+        public void moveFinished(char color, int position,
+                                 boolean goAgain) {}
+        public void gameEnded(char winner) {}
+    };
+
+    final Board board;
+    private int bluePoints = 0;
+    private int redPoints = 0;
+    private char turn = 'B';
+    private boolean over = false;
+
+    Rules(int gridLength) {
+        board = new Board(gridLength);
+    }
+
+    boolean play(char color, int position, Listener listener) {
+        /* Draw a line for the player of the given color. Returns false,
+           and reports nothing, if it is not their turn or the line cannot
+           be drawn. Completing a box scores it and keeps the turn. */
+        if (over || color != turn) {
+            return false;
+        }
+        int completed = board.play(position);
+        if (completed < 0) {
+            return false;
+        }
+        listener.lineDrawn(color, position);
+        if ((completed & 1) != 0) {
+            listener.squareCompleted(color, board.boxPosition(position, 0));
+        }
+        if ((completed & 2) != 0) {
+            listener.squareCompleted(color, board.boxPosition(position, 1));
+        }
+        int boxes = Integer.bitCount(completed);
+        if (color == 'B') {
+            bluePoints += boxes;
+        } else {
+            redPoints += boxes;
+        }
+        if (boxes == 0) {
+            turn = (color == 'B') ? 'R' : 'B';
+        }
+        listener.moveFinished(color, position, boxes > 0);
+        if (bluePoints + redPoints == board.totalBoxes()) {
+            over = true;
+            listener.gameEnded(winner());
+        }
+        return true;
+    }
+
+    char turn() {
+        /* Color of the player to move next. */
+        return turn;
+    }
+
+    boolean isOver() {
+        return over;
+    }
+
+    int points(char color) {
+        return (color == 'B') ? bluePoints : redPoints;
+    }
+
+    char winner() {
+        /* The color with the most boxes, or T for a tie. */
+        if (bluePoints == redPoints) {
+            return 'T';
+        }
+        return (bluePoints > redPoints) ? 'B' : 'R';
+    }
+}
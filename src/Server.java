@@ -24,250 +24,488 @@
  * SOFTWARE.
  */
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /*
-   W [B|R]        -  Welcome message with assigned color.
+   G [len] [name] [B]
+                  -  Grid length requested by client; sent once on connect.
+                     A player who gives a name is rated by it. A trailing
+                     B asks for binary framing (see Protocol).
+   A [id] [B]     -  Sent instead of G to watch a game as a spectator; the
+                     newest game is watched if no id is given.
+   R [token] [moves] [B]
+                  -  Sent instead of G to return to a game after losing
+                     the connection, with the session token and the number
+                     of moves seen; the moves missed are sent as L and S
+                     messages after the welcome.
+   W [B|R|S] [len] [B]
+                  -  Welcome message with assigned color (S for spectators)
+                     and grid length; a trailing B confirms binary framing
+                     from here on.
+   K [token]      -  Session token (hexadecimal) for returning to the game;
+                     sent to players right after the welcome.
    V [Y|N] [pos]  -  Validation message with position and extra turn.
    O [Y|N] [pos]  -  Opponent's move with position and extra turn
-   E [B|R|T]      -  End game message with winner color (or T for tie).
-   I [message]    -  Information sent by server for client to display.
+   E [B|R|T|A]    -  End game message with winner color (or T for tie),
+                     or A if the game was abandoned. A player who runs
+                     out of time or falls too far behind loses, and the
+                     game ends early with the opponent as the winner.
+   I [message]    -  Information sent by server for client to display;
+                     printable ASCII, at most 1024 characters.
    M [pos]        -  Move made by player; message sent by client.
    S [B|R] [pos]  -  Square completed; include position and player color.
+   L [B|R] [pos]  -  Line drawn by a player; sent to spectators and to
+                     players catching up.
    Q [B|R]        -  Quit message (with player color) sent by client.
+   X [B]          -  Sent instead of G to play many games over one
+                     connection; answered with "W X 0 [B]". Games are
+                     then opened with G or R messages and every message
+                     is prefixed with the game's channel, "#channel ",
+                     as chosen by the client (see Multiplexer).
 */
 
 public class Server {
-    private static final int PORT = 8901; /* chosen arbitrarily */
+    static final int PORT = 8901; /* chosen arbitrarily */
+    static final int HANDSHAKE_TIMEOUT = 500; /* milliseconds */
+    static final int MAX_WAIT = 120; /* seconds */
+    static final int GRACE = 30; /* seconds */
+    static final int TURN_TIME = 60; /* seconds */
 
     public static void main(String[] args) {
-        /* Open the server socket and wait for players to connect. Assign the
-           first player to color blue and second player to the color red.
-           Multiple games can be running at the same time, but each instance
-           can only have two players playing. */
+        /* Usage: java Server [-nio [threads]] [-virtual] [-grid length]
+                              [-computer seconds] [-think ms] [-table mb]
+                              [-tablebase file]
+                              [-wait seconds] [-grace seconds]
+                              [-turn seconds] [-outbound kb]
+                              [-overflow disconnect|forfeit]
+                              [-metrics port] [-journal directory]
+                              [-ratings file]
+           By default every player gets its own platform thread. The -nio
+           option multiplexes all connections over a small, fixed number of
+           selector threads, and -virtual runs the blocking handlers on
+           virtual threads so the two models can be compared under load.
+           The grid length is used for games whose first player does not
+           ask for a size of their own. With -computer, a player who has
+           waited that long for an opponent plays the computer instead,
+           which thinks for up to -think milliseconds a move and uses a
+           transposition table of -table megabytes, and looks endgames
+           up in the -tablebase file written by java Tablebase. Players
+           who find no opponent are sent away after -wait seconds (0 to
+           wait forever).
+           A player who loses the connection during a game may come back
+           within -grace seconds before the game is abandoned. A player
+           who takes longer than -turn seconds over a move loses the game
+           (0 for no limit). Up to -outbound kilobytes may be waiting to be
+           written to a player; a player who falls further behind is
+           disconnected, or with -overflow forfeit also loses the game.
+           Metrics are always available over JMX, and with -metrics also
+           as text at http://localhost:port/metrics. With -journal every
+           move is recorded in the directory, and games that were still
+           being played when the server last stopped are rebuilt, with
+           -grace seconds for their players to come back. With -ratings,
+           players who give a name are rated on the results of their
+           games, and the ratings are kept in the file. */
+        int ioThreads = 0;
+        boolean virtual = false;
+        int gridLength = Game.DEFAULT_GRID_LENGTH;
+        int computerWait = 0;
+        int think = 1000;
+        int tableMegabytes = 64;
+        int maxWait = 1000 * MAX_WAIT;
+        int grace = 1000 * GRACE;
+        int turnTime = 1000 * TURN_TIME;
+        int outbound = Backpressure.DEFAULT_LIMIT;
+        boolean forfeit = false;
+        int metricsPort = 0;
+        String journalDirectory = null;
+        String tablebaseFile = null;
+        String ratingsFile = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-grid") && i + 1 < args.length) {
+                gridLength = Integer.parseInt(args[++i]);
+                if (!Game.validGridLength(gridLength)) {
+                    System.out.println("Grid length must be an odd number "
+                        + "from 5 to " + Game.MAX_GRID_LENGTH);
+                    return;
+                }
+            } else if (args[i].equals("-nio")) {
+                ioThreads = Runtime.getRuntime().availableProcessors();
+                if (i + 1 < args.length && args[i+1].matches("\\d+")) {
+                    ioThreads = Integer.parseInt(args[++i]);
+                }
+            } else if (args[i].equals("-virtual")) {
+                virtual = true;
+            } else if (args[i].equals("-computer") && i + 1 < args.length) {
+                computerWait = 1000 * Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-think") && i + 1 < args.length) {
+                think = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-table") && i + 1 < args.length) {
+                tableMegabytes = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-tablebase") && i + 1 < args.length) {
+                tablebaseFile = args[++i];
+            } else if (args[i].equals("-wait") && i + 1 < args.length) {
+                maxWait = 1000 * Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-grace") && i + 1 < args.length) {
+                grace = 1000 * Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-turn") && i + 1 < args.length) {
+                turnTime = 1000 * Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-outbound") && i + 1 < args.length) {
+                outbound = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-overflow") && i + 1 < args.length) {
+                forfeit = args[++i].equals("forfeit");
+            } else if (args[i].equals("-metrics") && i + 1 < args.length) {
+                metricsPort = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-journal") && i + 1 < args.length) {
+                journalDirectory = args[++i];
+            } else if (args[i].equals("-ratings") && i + 1 < args.length) {
+                ratingsFile = args[++i];
+            } else {
+                System.out.println("Unknown option: " + args[i]);
+                return;
+            }
+        }
+
+        Engine computer = null;
+        if (computerWait > 0) {
+            Tablebase tablebase = null;
+            if (tablebaseFile != null) {
+                try {
+                    tablebase = Tablebase.open(Paths.get(tablebaseFile));
+                } catch (IOException error) {
+                    System.out.println("Cannot use tablebase: "
+                                     + error.getMessage());
+                    return;
+                }
+            }
+            computer = new Engine(Runtime.getRuntime().availableProcessors(),
+                                  tableMegabytes, think, tablebase);
+        }
+
+        try {
+            Metrics.SERVER.expose(metricsPort);
+            Journal journal = null;
+            if (journalDirectory != null) {
+                journal = new Journal(Paths.get(journalDirectory));
+            }
+            Ratings ratings = null;
+            if (ratingsFile != null) {
+                ratings = new Ratings(Paths.get(ratingsFile));
+                Metrics.SERVER.page("/leaderboard", ratings::page);
+            }
+            Lobby lobby = new Lobby(gridLength, computer, computerWait,
+                                    maxWait, grace, turnTime, journal,
+                                    ratings);
+            Backpressure backpressure = new Backpressure(1024 * outbound,
+                                                         forfeit);
+            if (journal != null) {
+                List<Game> recovered = journal.recover(ratings, turnTime,
+                                                       grace);
+                for (Game game : recovered) {
+                    lobby.restore(game);
+                }
+                System.out.println("Recovered " + recovered.size()
+                                 + " unfinished games from the journal");
+            }
+            if (ioThreads > 0) {
+                new NioServer(PORT, ioThreads, lobby, backpressure).run();
+            } else {
+                runBlocking(virtual ? virtualThreadExecutor()
+                                    : Executors.newCachedThreadPool(),
+                            lobby, backpressure);
+            }
+        } catch (Exception error) {
+            error.printStackTrace();
+        }
+    }
+
+    private static void runBlocking(ExecutorService handlers, Lobby lobby,
+                                    Backpressure backpressure)
+            throws IOException {
+        /* Open the server socket and wait for players to connect. Every
+           player's handshake and commands are handled on its own thread,
+           what is sent to a player is written by a second thread of its
+           own, and the lobby pairs players into games, so the accepting
+           thread never waits on a client. Multiple games can be running
+           at the same time, but each instance can only have two players
+           playing. */
         ServerSocket listener = null;      
         try {
             listener = new ServerSocket(PORT);
             System.out.println("Server has started...");
             while (true) {
-                Game game = new Game();
-                Game.Player player1 = game.new Player(listener.accept(), 'B');
-                Game.Player player2 = game.new Player(listener.accept(), 'R');
-                player1.setOpponent(player2);
-                player2.setOpponent(player1);
-                game.currentPlayer = player1; /* Player 1 goes first */
-                player1.start();
-                player2.start();
+                handlers.execute(new SocketConnection(listener.accept(),
+                                     lobby, handlers, backpressure));
             }
-        } catch (Exception error) {
-            error.printStackTrace();
         } finally {
+            handlers.shutdown();
             try {
                 listener.close();
             } catch (IOException e) {};
         } 
     }
-}
-
-class Game {
-    /* This class handles the logic for each instance of the game that
-       is currently running on the server. Grid length can be an odd
-       number greater than 3 (ideally 5 < L < 21), and both client 
-       and server must use the same value. */
-    private static final int GRID_LENGTH = 7;
-    private char[] board = new char[GRID_LENGTH*GRID_LENGTH];
-    private int bluePoints = 0;
-    private int redPoints = 0;
-    Player currentPlayer;
 
-    public char gameWinner() {
-        /* Find out which player has the most points. */
-        System.out.println("\n***Game Ended***");
-        System.out.println("Blue: " + bluePoints + " points");
-        System.out.println("Red: " + redPoints + " points");
-        System.out.println("****************\n");
-        if (bluePoints == redPoints) { 
-            return 'T';
-        } else { 
-            return (bluePoints > redPoints) ? 'B' : 'R';
+    private static ExecutorService virtualThreadExecutor() {
+        /* Virtual threads are only available on newer runtimes, so look the
+           factory up reflectively and fall back to platform threads. */
+        try {
+            Method factory = Executors.class.getMethod(
+                                 "newVirtualThreadPerTaskExecutor");
+            System.out.println("Using virtual threads");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads not supported by this JVM, "
+                             + "using platform threads");
+            return Executors.newCachedThreadPool();
         }
     }
+}
 
-    public int countCompletedSquares(int pos, Player player) {
-        /* Count the number grid squares that have been completed. */
-        int row = pos / GRID_LENGTH;
-        int numCompletedSquares = 0;
+class SocketConnection extends StreamConnection implements Runnable {
+    /* Blocking connection that reads the client's handshake and commands
+       on a dedicated thread, from joining the lobby to the end of the
+       game. Reading while the player waits for an opponent is also how a
+       waiting player who disconnects is noticed. A player's messages are
+       queued, up to the backpressure limit, and written by a second
+       thread, so a game's worker never blocks on a slow socket. A
+       spectator's thread instead copies the game's feed to the socket
+       itself, checking for more a few times a second. */
+    private static final int WATCH_INTERVAL = 20; /* milliseconds */
+    private DataInputStream input;
+    private OutputStream output;
+    private Socket socket;
+    private final Lobby lobby;
+    private final ExecutorService handlers;
+    private final Backpressure backpressure;
+    private final Queue<byte[]> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedBytes = new AtomicInteger();
+    private volatile boolean queued = false;
+    private volatile boolean closing = false;
+    private volatile Thread writer;
+    volatile Game.Player player;
+    private volatile Multiplexer multiplexer;
 
-        if (row % 2 == 0) {
-            /* The player chose a horizontal grid line. */
-            if (row != 0) {
-                /* Check if the grid square above is complete. */
-                if (board[pos-2*GRID_LENGTH] != 0
-                 && board[pos-GRID_LENGTH+1] != 0
-                 && board[pos-GRID_LENGTH-1] != 0) {
-                    ++numCompletedSquares;
-                    player.squareCompleted(pos-GRID_LENGTH);
-                }
-            } 
-            if (row != (GRID_LENGTH-1)) {
-                /* Check if the grid square below is complete. */
-                if (board[pos+2*GRID_LENGTH] != 0
-                 && board[pos+GRID_LENGTH+1] != 0
-                 && board[pos+GRID_LENGTH-1] != 0) {
-                    ++numCompletedSquares;
-                    player.squareCompleted(pos+GRID_LENGTH);
-                }
-            } 
-        } else {
-            /* The player chose a vertical grid line. */
-            int col = pos % GRID_LENGTH;
+    public SocketConnection(Socket socket, Lobby lobby,
+                            ExecutorService handlers,
+                            Backpressure backpressure) throws IOException {
+        this.socket = socket;
+        this.lobby = lobby;
+        this.handlers = handlers;
+        this.backpressure = backpressure;
+        /* Each move goes out in one write, which Nagle's algorithm would
+           hold back for the client's ACK of the one before. */
+        socket.setTcpNoDelay(true);
+        input = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream()));
+        output = socket.getOutputStream();
+    }
 
-            if (col != 0) {
-                /* Check if the grid square on the left is complete. */
-                if (board[pos-2] != 0
-                 && board[pos-GRID_LENGTH-1] != 0
-                 && board[pos+GRID_LENGTH-1] != 0) {
-                    ++numCompletedSquares;
-                    player.squareCompleted(pos-1);
-                }
-            }
-            if (col != (GRID_LENGTH-1)) {
-                /* Check if the grid square on the right is complete. */
-                if (board[pos+2] != 0
-                 && board[pos+GRID_LENGTH+1] != 0
-                 && board[pos-GRID_LENGTH+1] != 0) {
-                     ++numCompletedSquares;
-                     player.squareCompleted(pos+1);
-                 }
-            }
+    public String readHello() {
+        /* Read the client's optional G message. Older clients send nothing
+           until they are welcomed, so give up after a short wait. */
+        try {
+            socket.setSoTimeout(Server.HANDSHAKE_TIMEOUT);
+            String hello = Protocol.readLine(input);
+            socket.setSoTimeout(0);
+            binary = wantsBinary(hello);
+            return (hello == null) ? "" : hello;
+        } catch (IOException e) {
+            /* Timed out or already gone; a dead socket shows up as a
+               disconnect once the game starts. */
+            try {
+                socket.setSoTimeout(0);
+            } catch (IOException ignored) {}
+            return "";
         }
-
-        return numCompletedSquares;
     }
 
-    public boolean boardFilledUp() {
-        /* Check if grid is complete and game should end. */
-        int totalPossibleSquares = (GRID_LENGTH / 2) * (GRID_LENGTH / 2);
-        return (totalPossibleSquares == (bluePoints + redPoints));
+    protected void write(byte[] bytes, int offset, int length) {
+        /* A failed write is noticed by the reading thread. */
+        if (!queued) {
+            /* A spectator, written to by its own thread. */
+            try {
+                output.write(bytes, offset, length);
+            } catch (IOException e) {}
+            return;
+        }
+        if (closing) {
+            return;
+        }
+        if (queuedBytes.addAndGet(length) > backpressure.limit) {
+            closing = true;
+            outbound.clear();
+            backpressure.overflowed((multiplexer != null)
+                                    ? multiplexer.players()
+                                    : new Game.Player[] {player});
+            closeSocket();
+            return;
+        }
+        outbound.add(Arrays.copyOfRange(bytes, offset, offset + length));
+        LockSupport.unpark(writer);
     }
 
-    public synchronized boolean legalMove(int position, Player player) {
-        /* Determine if the move made by the player is allowed. */
-        if ((player == currentPlayer) && (board[position] == 0)) {
-            board[position] = currentPlayer.playerColor;
-            
-            int numSquares = countCompletedSquares(position, player);
-            if (numSquares > 0) {
-                /* Add the number of completed squares to the current
-                   player's score. */
-                currentPlayer.thisPlayerMoved(position, true);
-                if (player.playerColor == 'B') {
-                    bluePoints += numSquares;
+    private void writeQueued() {
+        /* The writer thread of a player's connection. It announces itself
+           before its first look at the queue, so a message queued before
+           that is found, and one queued after unparks it. The socket is
+           closed once everything queued before close has been written. */
+        writer = Thread.currentThread();
+        try {
+            while (true) {
+                byte[] bytes = outbound.poll();
+                if (bytes != null) {
+                    output.write(bytes);
+                    queuedBytes.addAndGet(-bytes.length);
+                } else if (closing) {
+                    break;
                 } else {
-                    redPoints += numSquares;
+                    LockSupport.park(this);
                 }
-            } else {
-                /* Finish current player's turn and let the opponent play. */
-                currentPlayer.thisPlayerMoved(position, false);
-                currentPlayer = currentPlayer.opponent;
             }
+        } catch (IOException e) {
+        } finally {
+            closeSocket();
+        }
+    }
 
-            return true;
+    public void close() {
+        if (queued) {
+            closing = true;
+            LockSupport.unpark(writer);
+        } else {
+            closeSocket();
         }
+    }
 
-        return false;
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {}
     }
 
-    class Player extends Thread {
-        /* Use a thread to handle messages to and from each client. */
-        private BufferedReader input;
-        private PrintWriter output;
-        private Socket socket;
-        private Player opponent;
-        private char playerColor;
+    public boolean isOpen() {
+        return !closing && !socket.isClosed();
+    }
 
-        public Player(Socket socket, char pColor) {
-            /* Open the socket to the client and send welcome message. */
-            this.socket = socket;
-            this.playerColor = pColor;
-            try {
-                input = new BufferedReader(
-                        new InputStreamReader(socket.getInputStream()));
-                output = new PrintWriter(socket.getOutputStream(), true);
-                output.println("W " + playerColor);
-                output.println("I Waiting for opponent to connect...");
-            } catch (IOException e) {
-                System.out.println("Couldn't connect to player :(");
-                e.printStackTrace();
+    private void watch(Game game) throws IOException, InterruptedException {
+        /* Send the spectator the game so far and then every move, until
+           the game is over or the spectator goes away. */
+        if (game == null) {
+            information("No game to watch");
+            flush();
+            return;
+        }
+        welcome('S', game.gridLength());
+        information("Watching game " + game.id);
+        flush();
+        Broadcast.Feed feed = game.watch(binary).join();
+        long offset = 0;
+        while (!feed.finished(offset)) {
+            ByteBuffer bytes = feed.next(offset);
+            if (bytes == null) {
+                Thread.sleep(WATCH_INTERVAL);
+                continue;
             }
+            output.write(bytes.array(), bytes.arrayOffset()
+                         + bytes.position(), bytes.remaining());
+            offset += bytes.remaining();
         }
+    }
 
-        public void setOpponent(Player opponent) {
-            this.opponent = opponent;
+    @Override
+    public void run() {
+        Metrics.SERVER.connectedPlayers.increment();
+        String hello = readHello();
+        if (hello.startsWith("A")) {
+            try {
+                watch(lobby.watch(hello));
+            } catch (IOException | InterruptedException e) {
+            } finally {
+                close();
+                Metrics.SERVER.connectedPlayers.decrement();
+            }
+            return;
         }
-
-        public void thisPlayerMoved(int position, boolean goAgain) {
-            /* Notify clients if the current player has made a valid move, and
-               if they get an extra turn. */
-            String again = goAgain ? "Y" : "N";
-            output.println("V " + again + " " + position);
-            opponent.output.println("O " + again + " " + position);
+        queued = true;
+        handlers.execute(this::writeQueued);
+        if (hello.startsWith("X")) {
+            multiplex();
+            return;
         }
-
-        public void squareCompleted(int position) {
-            /* Notify clients the position and color associated with a
-               completed grid square. */
-            String message = "S " + playerColor + " " + position;
-            output.println(message);
-            opponent.output.println(message);
+        player = hello.startsWith("R") ? lobby.reconnect(this, hello)
+                                       : lobby.join(this, hello);
+        if (player == null) {
+            information("Game not found");
+            flush();
+            close();
+            Metrics.SERVER.connectedPlayers.decrement();
+            return;
         }
-
-        @Override
-        public void run() {
+        try {
+            if (binary) {
+                byte[] frame = new byte[Protocol.MAX_FRAME];
+                while (true) {
+                    int length = input.readUnsignedShort();
+                    input.readFully(frame, 0, length);
+                    if (!player.handleFrame(frame, 0, length)) {
+                        return;
+                    }
+                }
+            }
             String command;
-            try {
-                /* Inform clients that both players have connected.
-                   Blue goes first. */
-                output.println("I All players connected");
-                if (playerColor == 'B') {
-                    output.println("I Your move");
+            while ((command = Protocol.readLine(input)) != null) {
+                if (!player.handleCommand(command)) {
+                    return;
                 }
+            }
+            player.disconnected(this);
+        } catch (Exception e) {
+            player.disconnected(this);
+        } finally {
+            close();
+            Metrics.SERVER.connectedPlayers.decrement();
+        }
+    }
 
+    private void multiplex() {
+        /* Read the messages of all the connection's games until the
+           client goes away; only a game the client quits ends before. */
+        multiplexer = new Multiplexer(this, lobby);
+        welcome('X', 0);
+        flush();
+        try {
+            if (binary) {
+                byte[] frame = new byte[Protocol.MAX_FRAME];
                 while (true) {
-                    command = input.readLine();
-                    command = command.isEmpty() ? " " : command;
-                    if (command.charAt(0) == 'M') {
-                        /* Check if current player's move is valid and if the
-                           game has ended. */
-                        int position = Integer.parseInt(command.substring(2));
-                        if (legalMove(position, this)) {
-                            if (boardFilledUp()) {
-                                char winner = gameWinner();
-                                output.println("E " + winner);
-                                opponent.output.println("E " + winner);
-                            }
-                        } else {
-                            output.println("I Invalid move");
-                        }                        
-                    } else if (command.charAt(0) == 'Q') {
-                        /* Player has quit the game. */
-                        if (command.charAt(2) == playerColor) {
-                            return;
-                        }
-                    }
+                    int length = input.readUnsignedShort();
+                    input.readFully(frame, 0, length);
+                    multiplexer.frame(frame, length);
                 }
-            } catch (Exception e) {
-                System.out.println("Player disconnected :(");
-            } finally {
-                try {
-                    socket.close();
-                } catch (IOException e) {}
             }
+            String command;
+            while ((command = Protocol.readLine(input)) != null) {
+                multiplexer.command(command);
+            }
+        } catch (Exception e) {
+        } finally {
+            multiplexer.disconnected();
+            close();
+            Metrics.SERVER.connectedPlayers.decrement();
         }
     }
 }
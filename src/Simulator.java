@@ -0,0 +1,267 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Ray Santana
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class Simulator {
+    /* Plays games between two strategies with no server and no sockets,
+       on the same Rules as a live game, and reports the speed and the
+       results. The games are shared out between one task per thread;
+       each task has its own random numbers and its own tally, so the
+       threads share nothing until the tallies are added up at the end. */
+
+    interface Strategy {
+        /* Line number of the move to play on the board, which has at
+           least one line left. The board must not be changed. */
+        int move(Board board, Random random);
+    }
+
+    public static void main(String[] args) throws Exception {
+        /* Usage: java Simulator [-grid length] [-games n] [-threads n]
+                      [-blue strategy] [-red strategy] [-seed n]
+                      [-think ms] [-tablebase file]
+           Strategies are random, greedy and engine. Think is the engine's
+           time per move and the tablebase is the engine's; both are only
+           used when one of the players is the engine. */
+        int gridLength = 7;
+        long games = 100000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String blue = "greedy";
+        String red = "random";
+        long seed = System.nanoTime();
+        long think = 10;
+        String tablebase = null;
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                System.out.println("Missing value for option: " + args[i]);
+                return;
+            }
+            String value = args[i+1];
+            switch (args[i]) {
+                case "-grid":      gridLength = Integer.parseInt(value); break;
+                case "-games":     games = Long.parseLong(value); break;
+                case "-threads":   threads = Integer.parseInt(value); break;
+                case "-blue":      blue = value; break;
+                case "-red":       red = value; break;
+                case "-seed":      seed = Long.parseLong(value); break;
+                case "-think":     think = Long.parseLong(value); break;
+                case "-tablebase": tablebase = value; break;
+                default:
+                    System.out.println("Unknown option: " + args[i]);
+                    return;
+            }
+        }
+        if (!Game.validGridLength(gridLength)) {
+            System.out.println("Grid length must be an odd number from 5 to "
+                             + Game.MAX_GRID_LENGTH);
+            return;
+        }
+
+        Engine engine = null;
+        if (blue.equals("engine") || red.equals("engine")) {
+            /* The engine searches on its own pool, sized so every game
+               in flight can search at once. */
+            engine = new Engine(threads, 16, think, (tablebase == null) ? null
+                                : Tablebase.open(Paths.get(tablebase)));
+        }
+        Strategy blueStrategy = strategy(blue, engine);
+        Strategy redStrategy = strategy(red, engine);
+        if (blueStrategy == null || redStrategy == null) {
+            System.out.println("Unknown strategy: "
+                             + ((blueStrategy == null) ? blue : red));
+            return;
+        }
+
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Tally total = new Tally();
+        try {
+            List<Future<Tally>> tasks = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                long share = games / threads + ((i < games % threads) ? 1 : 0);
+                tasks.add(pool.submit(new Batch(gridLength, share,
+                              blueStrategy, redStrategy, seed + i)));
+            }
+            for (Future<Tally> task : tasks) {
+                total.add(task.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        total.report(seconds, threads, blue, red);
+    }
+
+    static Strategy strategy(String name, Engine engine) {
+        /* The strategy with the given name, or null if there is none. */
+        switch (name) {
+            case "random": return Simulator::randomLine;
+            case "greedy": return Simulator::greedyLine;
+            case "engine":
+                return (board, random) ->
+                    board.lineAt(engine.bestMove(board));
+            default:       return null;
+        }
+    }
+
+    static int randomLine(Board board, Random random) {
+        /* Any line that is not drawn yet, all equally likely. */
+        int free = 0;
+        for (int line = board.nextFreeLine(0); line >= 0;
+             line = board.nextFreeLine(line + 1)) {
+            ++free;
+        }
+        int line = board.nextFreeLine(0);
+        for (int skip = random.nextInt(free); skip > 0; skip--) {
+            line = board.nextFreeLine(line + 1);
+        }
+        return line;
+    }
+
+    static int greedyLine(Board board, Random random) {
+        /* Completes a box when it can, and otherwise draws a random line
+           that does not hand the opponent one. With nothing but such
+           lines left, any line will do. */
+        int safe = 0;
+        int chosen = -1;
+        for (int line = board.nextFreeLine(0); line >= 0;
+             line = board.nextFreeLine(line + 1)) {
+            int sides = board.mostSidesNextTo(line);
+            if (sides == 3) {
+                return line;
+            }
+            /* Reservoir sampling keeps one safe line, uniformly, in a
+               single pass. */
+            if (sides < 2 && random.nextInt(++safe) == 0) {
+                chosen = line;
+            }
+        }
+        return (chosen >= 0) ? chosen : randomLine(board, random);
+    }
+
+    private static final class Batch implements Callable<Tally> {
+        private final int gridLength;
+        private final long games;
+        private final Strategy blue;
+        private final Strategy red;
+        private final Random random;
+
+        Batch(int gridLength, long games, Strategy blue, Strategy red,
+              long seed) {
+            this.gridLength = gridLength;
+            this.games = games;
+            this.blue = blue;
+            this.red = red;
+            this.random = new Random(seed);
+        }
+
+        @Override
+        public Tally call() {
+            Tally tally = new Tally();
+            for (long game = 0; game < games; game++) {
+                Rules rules = new Rules(gridLength);
+                while (!rules.isOver()) {
+                    Strategy strategy = (rules.turn() == 'B') ? blue : red;
+                    int line = strategy.move(rules.board, random);
+                    rules.play(rules.turn(), rules.board.positionOf(line),
+                               tally);
+                }
+                tally.bluePoints += rules.points('B');
+                tally.redPoints += rules.points('R');
+            }
+            return tally;
+        }
+    }
+
+    private static final class Tally implements Rules.Listener {
+        /* Counts what happens in one task's games. Only touched by the
+           task's own thread until it is added to the total. */
+        long games;
+        long moves;
+        long blueWins;
+        long redWins;
+        long ties;
+        long bluePoints;
+        long redPoints;
+
+        public void lineDrawn(char color, int position) {
+            ++moves;
+        }
+
+        public void squareCompleted(char color, int position) {}
+
+        public void moveFinished(char color, int position,
+                                 boolean goAgain) {}
+
+        public void gameEnded(char winner) {
+            ++games;
+            if (winner == 'B') {
+                ++blueWins;
+            } else if (winner == 'R') {
+                ++redWins;
+            } else {
+                ++ties;
+            }
+        }
+
+        void add(Tally other) {
+            games += other.games;
+            moves += other.moves;
+            blueWins += other.blueWins;
+            redWins += other.redWins;
+            ties += other.ties;
+            bluePoints += other.bluePoints;
+            redPoints += other.redPoints;
+        }
+
+        void report(double seconds, int threads, String blue, String red) {
+            System.out.printf("%d games in %.2f s on %d threads "
+                            + "(%.0f games/sec, %.0f moves/sec)%n",
+                              games, seconds, threads, games / seconds,
+                              moves / seconds);
+            if (games == 0) {
+                return;
+            }
+            System.out.printf("Blue (%s): %d wins (%.1f%%), "
+                            + "%.2f boxes a game%n", blue, blueWins,
+                              100.0 * blueWins / games,
+                              (double) bluePoints / games);
+            System.out.printf("Red (%s): %d wins (%.1f%%), "
+                            + "%.2f boxes a game%n", red, redWins,
+                              100.0 * redWins / games,
+                              (double) redPoints / games);
+            System.out.printf("Ties: %d (%.1f%%)%n", ties,
+                              100.0 * ties / games);
+        }
+    }
+}
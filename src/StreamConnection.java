@@ -0,0 +1,227 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Ray Santana
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.util.Arrays;
+
+abstract class StreamConnection implements Connection {
+    /* Connection to a remote client. Messages are encoded into a batch, as
+       text lines or as binary events if the client asked for them, and the
+       batch is handed to write in one piece when flushed. Encoding works on
+       bytes directly, so a move produces no garbage besides the batch the
+       subclass may copy. */
+    private byte[] batch = new byte[256];
+    private int length = 0;
+    private int frameStart = -1;
+    protected boolean binary = false;
+    protected int channel = -1; /* a seat of a multiplexed connection */
+    static final int MAX_INFORMATION = 1024; /* characters of an I message */
+
+    protected abstract void write(byte[] bytes, int offset, int length);
+
+    static boolean wantsBinary(String hello) {
+        return hello != null
+            && (hello.startsWith("G ") || hello.startsWith("A ")
+             || hello.startsWith("R ") || hello.startsWith("X "))
+            && hello.endsWith(" B");
+    }
+
+    public synchronized void welcome(char color, int gridLength) {
+        /* Text, as it tells the client which framing follows, except on
+           a seat of a multiplexed connection whose framing is agreed. */
+        if (binary && channel >= 0) {
+            beginEvent('W', 6);
+            batch[length++] = (byte) color;
+            Protocol.putInt(batch, length, gridLength);
+            length += 4;
+            return;
+        }
+        endFrame();
+        String message = "W " + color + " " + gridLength
+                       + ((binary && channel < 0) ? " B" : "");
+        ensure(message.length() + 13);
+        tag();
+        for (int i = 0; i < message.length(); i++) {
+            batch[length++] = (byte) message.charAt(i);
+        }
+        batch[length++] = '\n';
+    }
+
+    public synchronized void session(long token) {
+        if (binary) {
+            beginEvent('K', 9);
+            Protocol.putLong(batch, length, token);
+            length += 8;
+        } else {
+            String message = "K " + Long.toHexString(token);
+            ensure(message.length() + 13);
+            tag();
+            for (int i = 0; i < message.length(); i++) {
+                batch[length++] = (byte) message.charAt(i);
+            }
+            batch[length++] = '\n';
+        }
+    }
+
+    public synchronized void information(String message) {
+        /* The protocol's text is ASCII, so a message is cut to
+           MAX_INFORMATION characters and anything outside printable ASCII,
+           such as a name in another alphabet or a line break that would
+           end a text line early, is sent as '?'. */
+        int size = Math.min(message.length(), MAX_INFORMATION);
+        if (binary) {
+            beginEvent('I', 3 + size);
+            batch[length++] = (byte) (size >>> 8);
+            batch[length++] = (byte) size;
+        } else {
+            ensure(size + 15);
+            tag();
+            batch[length++] = 'I';
+            batch[length++] = ' ';
+        }
+        for (int i = 0; i < size; i++) {
+            char c = message.charAt(i);
+            batch[length++] = (byte) ((c >= ' ' && c <= '~') ? c : '?');
+        }
+        if (!binary) {
+            batch[length++] = '\n';
+        }
+    }
+
+    public synchronized void moveValidated(boolean goAgain, int position) {
+        event('V', goAgain ? 'Y' : 'N', position);
+    }
+
+    public synchronized void opponentMoved(boolean goAgain, int position) {
+        event('O', goAgain ? 'Y' : 'N', position);
+    }
+
+    public synchronized void squareCompleted(char color, int position) {
+        event('S', color, position);
+    }
+
+    public synchronized void lineDrawn(char color, int position) {
+        /* Only sent to spectators and to players catching up. */
+        event('L', color, position);
+    }
+
+    public synchronized void gameEnded(char winner) {
+        if (binary) {
+            beginEvent('E', 2);
+            batch[length++] = (byte) winner;
+        } else {
+            ensure(16);
+            tag();
+            batch[length++] = 'E';
+            batch[length++] = ' ';
+            batch[length++] = (byte) winner;
+            batch[length++] = '\n';
+        }
+    }
+
+    public synchronized void flush() {
+        endFrame();
+        if (length > 0) {
+            write(batch, 0, length);
+            length = 0;
+        }
+    }
+
+    private void event(char type, char flag, int position) {
+        /* The V, O and S events share a layout: a letter and a number. */
+        if (binary) {
+            beginEvent(type, 6);
+            batch[length++] = (byte) flag;
+            Protocol.putInt(batch, length, position);
+            length += 4;
+        } else {
+            ensure(28);
+            tag();
+            batch[length++] = (byte) type;
+            batch[length++] = ' ';
+            batch[length++] = (byte) flag;
+            batch[length++] = ' ';
+            putDecimal(position);
+            batch[length++] = '\n';
+        }
+    }
+
+    private void beginEvent(char type, int size) {
+        /* Start a frame if none is open or the open one is full. */
+        if (frameStart >= 0 && length - frameStart - 2 + size
+                               > Protocol.MAX_FRAME) {
+            endFrame();
+        }
+        ensure(size + 6);
+        if (frameStart < 0) {
+            frameStart = length;
+            length += 2;
+            if (channel >= 0) {
+                Protocol.putInt(batch, length, channel);
+                length += 4;
+            }
+        }
+        batch[length++] = (byte) type;
+    }
+
+    private void endFrame() {
+        if (frameStart >= 0) {
+            int size = length - frameStart - 2;
+            batch[frameStart] = (byte) (size >>> 8);
+            batch[frameStart + 1] = (byte) size;
+            frameStart = -1;
+        }
+    }
+
+    private void tag() {
+        /* Lines for a seat of a multiplexed connection start with
+           "#channel ". */
+        if (channel >= 0) {
+            batch[length++] = '#';
+            putDecimal(channel);
+            batch[length++] = ' ';
+        }
+    }
+
+    private void putDecimal(int value) {
+        /* Positions and channels are never negative. */
+        int digits = 1;
+        for (int rest = value / 10; rest > 0; rest /= 10) {
+            ++digits;
+        }
+        for (int i = length + digits - 1; i >= length; i--) {
+            batch[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    private void ensure(int extra) {
+        if (length + extra > batch.length) {
+            batch = Arrays.copyOf(batch,
+                        Math.max(2 * batch.length, length + extra));
+        }
+    }
+}
@@ -0,0 +1,525 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Ray Santana
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class Tablebase {
+    /* Values of loony endgames: positions where every incomplete box has
+       exactly two sides drawn, so whatever the player to move does opens
+       a chain or a loop for the opponent. Such a position is worth the
+       same on any grid and in any orientation as long as it has the same
+       chain and loop lengths, so it is stored once under the multiset of
+       those lengths, which is as reduced as a position can be. A value is
+       the difference between the boxes the player to move and the
+       opponent will still take, as in the engine's search.
+
+       The multisets with at most maxBoxes boxes in total are numbered
+       with a combinatorial ranking, and the file holds one signed byte
+       per rank after a HEADER_SIZE byte header:
+
+         0  magic number "DBTB"
+         4  format version
+         8  maxBoxes
+        12  reserved
+
+       The generator works the values out once, offline. The lookup side
+       memory-maps the file read-only, so the values stay in the page
+       cache rather than on the heap and are shared by every engine
+       thread; a lookup splits the board into chains and loops, ranks the
+       lengths and reads one byte. */
+    static final int UNKNOWN = Integer.MIN_VALUE;
+    static final int DEFAULT_MAX_BOXES = 49;
+    private static final int MAGIC = 0x44425442;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    private final int maxBoxes;
+    private final int typeCount;
+    private final long[][] counts;
+    private final ByteBuffer values;
+
+    private Tablebase(int maxBoxes, ByteBuffer values) {
+        this.maxBoxes = maxBoxes;
+        this.typeCount = maxBoxes + Math.max(0, maxBoxes - 3);
+        this.counts = countTable(maxBoxes, typeCount);
+        this.values = values;
+    }
+
+    public static Tablebase open(Path file) throws IOException {
+        /* Map a file written by the generator. */
+        try (FileChannel channel = FileChannel.open(file,
+                                       StandardOpenOption.READ)) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY,
+                                            0, HEADER_SIZE);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException(file + " is not a tablebase");
+            }
+            int maxBoxes = header.getInt(8);
+            Tablebase tablebase = new Tablebase(maxBoxes, null);
+            long size = tablebase.size();
+            if (channel.size() != HEADER_SIZE + size) {
+                throw new IOException(file + " is truncated");
+            }
+            return new Tablebase(maxBoxes, channel.map(
+                FileChannel.MapMode.READ_ONLY, HEADER_SIZE, size));
+        }
+    }
+
+    public int maxBoxes() {
+        return maxBoxes;
+    }
+
+    long size() {
+        /* Number of chain and loop multisets with at most maxBoxes
+           boxes. */
+        return counts[typeCount][maxBoxes];
+    }
+
+    /* Chains of 1 to maxBoxes boxes are types 0 to maxBoxes - 1, and
+       loops of 4 to maxBoxes boxes follow them. Loops on a square grid
+       have at least four boxes. */
+
+    private int boxesOf(int type) {
+        return (type < maxBoxes) ? type + 1 : type - maxBoxes + 4;
+    }
+
+    private static long[][] countTable(int maxBoxes, int typeCount) {
+        /* counts[t][s] is the number of multisets of the types below t
+           with at most s boxes; ranks are built from these. */
+        long[][] counts = new long[typeCount + 1][maxBoxes + 1];
+        Arrays.fill(counts[0], 1);
+        for (int t = 0; t < typeCount; t++) {
+            int boxes = (t < maxBoxes) ? t + 1 : t - maxBoxes + 4;
+            for (int s = 0; s <= maxBoxes; s++) {
+                counts[t+1][s] = counts[t][s]
+                    + ((s >= boxes) ? counts[t+1][s - boxes] : 0);
+            }
+        }
+        return counts;
+    }
+
+    private long rank(int[] types, int[] multiplicity, int distinct) {
+        /* Rank of a multiset given as its distinct types in descending
+           order with their multiplicities; types with a multiplicity of 0
+           are skipped. Multisets are ordered by the count of the highest
+           type first, so each type adds the number of multisets that have
+           fewer of it and the same higher types. */
+        long rank = 0;
+        int left = maxBoxes;
+        for (int i = 0; i < distinct; i++) {
+            int type = types[i];
+            int boxes = boxesOf(type);
+            for (int k = 0; k < multiplicity[i]; k++) {
+                rank += counts[type][left];
+                left -= boxes;
+            }
+        }
+        return rank;
+    }
+
+    private static int afterOpening(int boxes, boolean loop, int rest) {
+        /* What the opponent nets when a chain or loop is opened for them
+           in a position whose remainder is worth rest to whoever moves in
+           it. The opponent takes everything and moves on, or keeps control
+           by leaving the last two boxes of a chain (four of a loop) to the
+           opener, who must then move on. Chains of one or two boxes are
+           opened so that nothing can be left. */
+        if (loop) {
+            return Math.max(boxes + rest, boxes - 8 - rest);
+        }
+        if (boxes <= 2) {
+            return boxes + rest;
+        }
+        return Math.max(boxes + rest, boxes - 4 - rest);
+    }
+
+    Probe probe(Board board) {
+        return new Probe(board);
+    }
+
+    final class Probe {
+        /* Looks up the positions of one board. Keeps the scratch space of
+           the walk over the boxes, so it is only used by one thread. */
+        private final Board board;
+        private final int[] seen;
+        private final int[] stack;
+        private final int[] types = new int[64];
+        private final int[] multiplicity = new int[64];
+        private int walk = 0;
+
+        Probe(Board board) {
+            this.board = board;
+            this.seen = new int[board.totalBoxes()];
+            this.stack = new int[board.totalBoxes()];
+        }
+
+        int value() {
+            /* Value of the board's position for the player to move, or
+               UNKNOWN if it is not a loony endgame within the table. */
+            int boxCount = board.totalBoxes();
+            for (int box = 0; box < boxCount; box++) {
+                int sides = board.sidesDrawn(box);
+                if (sides != 2 && sides != 4) {
+                    return UNKNOWN;
+                }
+            }
+            ++walk;
+            int distinct = 0;
+            int total = 0;
+            for (int box = 0; box < boxCount; box++) {
+                if (seen[box] == walk || board.sidesDrawn(box) == 4) {
+                    continue;
+                }
+                int boxes = 0;
+                int ends = 0;
+                int depth = 0;
+                seen[box] = walk;
+                stack[depth++] = box;
+                while (depth > 0) {
+                    int current = stack[--depth];
+                    ++boxes;
+                    for (int side = 0; side < 4; side++) {
+                        if (board.isDrawn(board.boxSide(current, side))) {
+                            continue;
+                        }
+                        int next = neighbour(current, side);
+                        if (next < 0) {
+                            ++ends;
+                        } else if (seen[next] != walk) {
+                            seen[next] = walk;
+                            stack[depth++] = next;
+                        }
+                    }
+                }
+                total += boxes;
+                if (total > maxBoxes || distinct == types.length
+                 || (ends == 0 && boxes < 4)) {
+                    return UNKNOWN;
+                }
+                distinct = add((ends == 0) ? maxBoxes + boxes - 4
+                                           : boxes - 1, distinct);
+            }
+            return values.get((int) rank(types, multiplicity, distinct));
+        }
+
+        private int neighbour(int box, int side) {
+            /* The box across a side, or -1 at the edge of the grid. */
+            int n = board.boxesPerSide;
+            int row = box / n;
+            int col = box % n;
+            switch (side) {
+                case 0:  return (row > 0) ? box - n : -1;
+                case 1:  return (row < n - 1) ? box + n : -1;
+                case 2:  return (col > 0) ? box - 1 : -1;
+                default: return (col < n - 1) ? box + 1 : -1;
+            }
+        }
+
+        private int add(int type, int distinct) {
+            /* Insert into the descending list of distinct types. */
+            int i = 0;
+            while (i < distinct && types[i] > type) {
+                ++i;
+            }
+            if (i < distinct && types[i] == type) {
+                ++multiplicity[i];
+                return distinct;
+            }
+            System.arraycopy(types, i, types, i + 1, distinct - i);
+            System.arraycopy(multiplicity, i, multiplicity, i + 1,
+                             distinct - i);
+            types[i] = type;
+            multiplicity[i] = 1;
+            return distinct + 1;
+        }
+    }
+
+    private static final class Generator {
+        /* Works out every value in order of the total number of boxes,
+           so the positions left after opening a chain or loop are always
+           done first. */
+        private static final int INFINITY = 1 << 20;
+        private final Tablebase table;
+        private final byte[] values;
+        private final int[] types;
+        private final int[] multiplicity;
+
+        Generator(Tablebase table) {
+            this.table = table;
+            this.values = new byte[(int) table.size()];
+            this.types = new int[table.maxBoxes];
+            this.multiplicity = new int[table.maxBoxes];
+        }
+
+        byte[] run() {
+            for (int total = 1; total <= table.maxBoxes; total++) {
+                fill(table.typeCount - 1, total, 0);
+            }
+            return values;
+        }
+
+        private void fill(int highest, int left, int distinct) {
+            /* Every multiset of the types up to highest with exactly left
+               more boxes, added after the first distinct types. */
+            if (left == 0) {
+                values[(int) table.rank(types, multiplicity, distinct)] =
+                    (byte) solve(distinct);
+                return;
+            }
+            for (int type = highest; type >= 0; type--) {
+                int boxes = table.boxesOf(type);
+                types[distinct] = type;
+                for (int k = 1; k * boxes <= left; k++) {
+                    multiplicity[distinct] = k;
+                    fill(type - 1, left - k * boxes, distinct + 1);
+                }
+            }
+        }
+
+        private int solve(int distinct) {
+            /* The player to move opens whichever chain or loop leaves the
+               opponent least. */
+            int best = -INFINITY;
+            for (int i = 0; i < distinct; i++) {
+                --multiplicity[i];
+                int rest = values[(int) table.rank(types, multiplicity,
+                                                   distinct)];
+                ++multiplicity[i];
+                int type = types[i];
+                int opponent = afterOpening(table.boxesOf(type),
+                                            type >= table.maxBoxes, rest);
+                best = Math.max(best, -opponent);
+            }
+            return best;
+        }
+    }
+
+    private static final class Verifier {
+        /* Checks the table against an exhaustive search of the real game
+           on small boards. Random loony positions are made by drawing
+           lines that give no box a third side until there are none left,
+           then opening and taking whole chains and loops until at most
+           MAX_FREE_LINES are left, which keeps the search small and the
+           position loony. The search plays every line, with a completed
+           box keeping the turn, and remembers the value of each board it
+           has solved. */
+        private static final int MAX_FREE_LINES = 16;
+        private final Random random;
+        private final Map<Long, Integer> solved = new HashMap<>();
+
+        Verifier(long seed) {
+            this.random = new Random(seed);
+        }
+
+        Board loony(int gridLength) {
+            Board board = new Board(gridLength);
+            int[] safe = new int[board.lineCount()];
+            while (true) {
+                int count = 0;
+                for (int line = board.nextFreeLine(0); line >= 0;
+                         line = board.nextFreeLine(line + 1)) {
+                    if (board.mostSidesNextTo(line) < 2) {
+                        safe[count++] = line;
+                    }
+                }
+                if (count == 0) {
+                    break;
+                }
+                board.drawLine(safe[random.nextInt(count)]);
+            }
+            int free = freeLines(board, safe);
+            while (free > MAX_FREE_LINES) {
+                board.drawLine(safe[random.nextInt(free)]);
+                for (int line = board.nextFreeLine(0); line >= 0;
+                         line = board.nextFreeLine(line + 1)) {
+                    if (board.mostSidesNextTo(line) == 3) {
+                        /* Take the box and look again from the start. */
+                        board.drawLine(line);
+                        line = -1;
+                    }
+                }
+                free = freeLines(board, safe);
+            }
+            return board;
+        }
+
+        private static int freeLines(Board board, int[] free) {
+            int count = 0;
+            for (int line = board.nextFreeLine(0); line >= 0;
+                     line = board.nextFreeLine(line + 1)) {
+                free[count++] = line;
+            }
+            return count;
+        }
+
+        void forget() {
+            solved.clear();
+        }
+
+        int search(Board board) {
+            /* Boxes the player to move still takes, less the opponent's,
+               with best play from both. */
+            long key = 0;
+            for (int line = 0; line < board.lineCount(); line++) {
+                if (board.isDrawn(line)) {
+                    key |= 1L << line;
+                }
+            }
+            Integer known = solved.get(key);
+            if (known != null) {
+                return known;
+            }
+            int best = Integer.MIN_VALUE;
+            for (int line = board.nextFreeLine(0); line >= 0;
+                     line = board.nextFreeLine(line + 1)) {
+                int boxes = Integer.bitCount(board.drawLine(line));
+                int value = (boxes > 0) ? boxes + search(board)
+                                        : -search(board);
+                board.eraseLine(line);
+                best = Math.max(best, value);
+            }
+            best = (best == Integer.MIN_VALUE) ? 0 : best;
+            solved.put(key, best);
+            return best;
+        }
+    }
+
+    private static int verify(Tablebase table, int positions, long seed) {
+        /* Compare the table with the search on positions random loony
+           endgames of each small grid, and return the number that
+           disagree. Boards are kept to 64 lines so a board fits in the
+           search's key. */
+        Verifier verifier = new Verifier(seed);
+        int wrong = 0;
+        for (int gridLength : new int[] {5, 7, 9}) {
+            if ((gridLength / 2) * (gridLength / 2) > table.maxBoxes) {
+                continue;
+            }
+            for (int i = 0; i < positions; i++) {
+                Board board = verifier.loony(gridLength);
+                int value = table.probe(board).value();
+                if (value == UNKNOWN) {
+                    /* A box with fewer than two sides was left. */
+                    --i;
+                    continue;
+                }
+                int searched = verifier.search(board);
+                verifier.forget();
+                if (value != searched) {
+                    ++wrong;
+                    System.out.println("Grid " + gridLength + ": table says "
+                                     + value + ", search says "
+                                     + searched + " for lines "
+                                     + drawnLines(board));
+                }
+            }
+            System.out.println("Grid " + gridLength + ": " + positions
+                             + " positions checked");
+        }
+        return wrong;
+    }
+
+    private static String drawnLines(Board board) {
+        StringBuilder drawn = new StringBuilder();
+        for (int line = 0; line < board.lineCount(); line++) {
+            if (board.isDrawn(line)) {
+                drawn.append(' ').append(board.positionOf(line));
+            }
+        }
+        return drawn.toString().trim();
+    }
+
+    public static void main(String[] args) throws IOException {
+        /* Usage: java Tablebase [-boxes n] file
+                  java Tablebase -verify [-positions n] [-seed n] file
+           Offline generator: writes the values of every loony endgame
+           with at most n boxes in its chains and loops (49 by default,
+           enough for any endgame on grids up to 15). With -verify it
+           reads a file instead and checks it against an exhaustive
+           search of random loony endgames on grids 5 to 9, exiting with
+           status 1 if any value is wrong. */
+        int maxBoxes = DEFAULT_MAX_BOXES;
+        boolean verify = false;
+        int positions = 200;
+        long seed = 1;
+        String file = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-boxes") && i + 1 < args.length) {
+                maxBoxes = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-verify")) {
+                verify = true;
+            } else if (args[i].equals("-positions") && i + 1 < args.length) {
+                positions = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-seed") && i + 1 < args.length) {
+                seed = Long.parseLong(args[++i]);
+            } else if (file == null && !args[i].startsWith("-")) {
+                file = args[i];
+            } else {
+                System.out.println("Unknown option: " + args[i]);
+                return;
+            }
+        }
+        if (file == null || maxBoxes < 1 || maxBoxes > 60) {
+            System.out.println("Usage: java Tablebase [-boxes 1-60] file");
+            System.out.println("       java Tablebase -verify"
+                             + " [-positions n] [-seed n] file");
+            return;
+        }
+
+        long start = System.nanoTime();
+        if (verify) {
+            int wrong = verify(open(Paths.get(file)), positions, seed);
+            System.out.printf("%d wrong values in %.2f s%n", wrong,
+                              (System.nanoTime() - start) / 1e9);
+            if (wrong > 0) {
+                System.exit(1);
+            }
+            return;
+        }
+        Tablebase table = new Tablebase(maxBoxes, null);
+        byte[] values = new Generator(table).run();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(maxBoxes).putInt(0);
+        try (OutputStream output = Files.newOutputStream(Paths.get(file))) {
+            output.write(header.array());
+            output.write(values);
+        }
+        System.out.printf("%d positions with up to %d boxes in %.2f s%n",
+                          values.length, maxBoxes,
+                          (System.nanoTime() - start) / 1e9);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Ray Santana
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+class TimingWheel {
+    /* Hashed timing wheel for timers that are set far more often than
+       they fire, like a deadline for every turn of every game. Time is
+       cut into ticks and the wheel has a slot for each tick of one turn
+       of the wheel; a timeout is hashed into the slot its deadline falls
+       in, with the number of whole turns still to go. Setting and
+       cancelling are constant time whatever the number of timers, and a
+       tick only walks one slot. Timeouts are handed to the wheel's thread
+       through a lock-free queue, and a cancelled one is only marked and
+       dropped when its slot comes round. Deadlines are rounded up to the
+       next tick. Tasks run on the wheel's thread, so they should only
+       hand the work on, as a game does by posting to its mailbox. */
+    private final long tickNanos;
+    private final Timeout[] slots;
+    private final int mask;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final long start = System.nanoTime();
+    private long tick = 0; /* only touched by the wheel's thread */
+
+    TimingWheel(long tickMillis, int slotCount, String name) {
+        /* The slot count is rounded up to a power of two. */
+        tickNanos = tickMillis * 1000000L;
+        slots = new Timeout[Integer.highestOneBit(
+                    Math.max(1, slotCount - 1)) << 1];
+        mask = slots.length - 1;
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    Timeout schedule(long delayMillis, Runnable task) {
+        Timeout timeout = new Timeout(
+            System.nanoTime() + delayMillis * 1000000L, task);
+        added.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        while (true) {
+            long wait;
+            while ((wait = start + tick * tickNanos - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            Timeout timeout;
+            while ((timeout = added.poll()) != null) {
+                if (!timeout.cancelled) {
+                    insert(timeout);
+                }
+            }
+            expire(tick & mask);
+            ++tick;
+        }
+    }
+
+    private void insert(Timeout timeout) {
+        /* A deadline that has already passed goes into the slot about to
+           be expired. */
+        long due = Math.max(tick, Math.floorDiv(timeout.deadline - start
+                                                + tickNanos - 1, tickNanos));
+        timeout.rounds = (due - tick) / slots.length;
+        int slot = (int) (due & mask);
+        timeout.next = slots[slot];
+        slots[slot] = timeout;
+    }
+
+    private void expire(long slot) {
+        Timeout previous = null;
+        Timeout timeout = slots[(int) slot];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.cancelled || timeout.rounds == 0) {
+                if (previous == null) {
+                    slots[(int) slot] = next;
+                } else {
+                    previous.next = next;
+                }
+                timeout.next = null;
+                if (!timeout.cancelled) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            } else {
+                --timeout.rounds;
+                previous = timeout;
+            }
+            timeout = next;
+        }
+    }
+
+    static final class Timeout {
+        private final long deadline;
+        private final Runnable task;
+        private volatile boolean cancelled = false;
+        private long rounds;
+        private Timeout next;
+
+        private Timeout(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        void cancel() {
+            /* The task will not run, unless it is already running. */
+            cancelled = true;
+        }
+    }
+}
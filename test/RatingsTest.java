@@ -0,0 +1,85 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Ray Santana
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class RatingsTest {
+    /* Regression checks for the leaderboard, run without a test
+       framework:
+
+         javac -d out src/*.java test/*.java && java -cp out RatingsTest
+
+       Exits with a non-zero status if a check fails. */
+
+    public static void main(String[] args) throws Exception {
+        tieAtEqualRatings();
+        System.out.println("RatingsTest passed");
+    }
+
+    private static void tieAtEqualRatings() throws Exception {
+        /* A tie between equally rated players leaves both ratings as they
+           were, so the new standings are equal to the old ones on the
+           board. Both players must still be listed afterwards. */
+        Path file = Files.createTempFile("ratings", ".txt");
+        Files.delete(file);
+        Ratings ratings = new Ratings(file);
+        ratings.record("alice", "bob", 'T');
+        ratings.record("alice", "bob", 'T');
+        awaitGames(ratings, "alice", 2);
+        awaitGames(ratings, "bob", 2);
+        String board = ratings.page("top=10");
+        check(board.contains(" alice 1500 2 0 0 2"),
+              "alice missing from the board:\n" + board);
+        check(board.contains(" bob 1500 2 0 0 2"),
+              "bob missing from the board:\n" + board);
+        check(board.split("\n").length == 2,
+              "expected two players on the board:\n" + board);
+        check(ratings.rank(ratings.standing("alice")) == 1
+           && ratings.rank(ratings.standing("bob")) == 1,
+              "equally rated players should share the first rank");
+    }
+
+    private static void awaitGames(Ratings ratings, String name, int games)
+            throws InterruptedException {
+        /* Results are rated on the ratings thread. */
+        for (int i = 0; i < 500; i++) {
+            Ratings.Standing standing = ratings.standing(name);
+            if (standing != null && standing.games == games) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        check(false, name + " was not rated in time");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            System.out.println("FAILED: " + message);
+            System.exit(1);
+        }
+    }
+}